@@ -0,0 +1,153 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.Permissions;
+import jetbrains.buildServer.users.impl.UserEx;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Permission checks of the session user while a project is being created from an invitation:
+ * the original user, {@link AdditionalPermissionsUserWrapper} and the proxy it used to be. The old wrapper created its proxy
+ * in every {@code getWrappedUser()} call, {@code legacyProxyPerCall} creates it for every operation the same way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdditionalPermissionsUserWrapperBenchmark {
+
+    @Param({"original", "wrapper", "legacyProxy", "legacyProxyPerCall"})
+    public String user;
+
+    private UserEx tested;
+    private UserEx original;
+    private Map<String, List<Permission>> additionalPermissions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        original = new BenchmarkCoreFacade().createUser("user");
+        additionalPermissions = new HashMap<>();
+        additionalPermissions.put("_Root", asList(Permission.VIEW_BUILD_CONFIGURATION_SETTINGS, Permission.VIEW_PROJECT));
+        additionalPermissions.put("Parent", asList(Permission.VIEW_BUILD_CONFIGURATION_SETTINGS, Permission.VIEW_PROJECT));
+        additionalPermissions.put("Project", asList(Permission.CREATE_SUB_PROJECT, Permission.VIEW_BUILD_CONFIGURATION_SETTINGS, Permission.VIEW_PROJECT));
+        switch (user) {
+            case "original":
+                tested = original;
+                break;
+            case "wrapper":
+                tested = new AdditionalPermissionsUserWrapper(original, additionalPermissions).getWrappedUser();
+                break;
+            case "legacyProxy":
+                tested = legacyProxy(original, additionalPermissions);
+                break;
+            case "legacyProxyPerCall":
+                tested = null;
+                break;
+            default:
+                throw new IllegalArgumentException(user);
+        }
+    }
+
+    @Benchmark
+    public boolean isPermissionGrantedForProject() {
+        return getTested().isPermissionGrantedForProject("Project", Permission.CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public boolean isPermissionGrantedForOtherProject() {
+        return getTested().isPermissionGrantedForProject("Other", Permission.EDIT_PROJECT);
+    }
+
+    @Benchmark
+    public boolean isPermissionGrantedForAnyProject() {
+        return getTested().isPermissionGrantedForAnyProject(Permission.CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public Permissions getPermissionsGrantedForProject() {
+        return getTested().getPermissionsGrantedForProject("Project");
+    }
+
+    @Benchmark
+    public String getUsername() {
+        return getTested().getUsername();
+    }
+
+    @NotNull
+    private UserEx getTested() {
+        return tested != null ? tested : legacyProxy(original, additionalPermissions);
+    }
+
+    /**
+     * The wrapper as it was before its permissions were precomputed, kept as the baseline.
+     */
+    @NotNull
+    private static UserEx legacyProxy(@NotNull UserEx delegate, @NotNull Map<String, List<Permission>> additionalPermissions) {
+        return (UserEx) Proxy.newProxyInstance(AdditionalPermissionsUserWrapperBenchmark.class.getClassLoader(), new Class<?>[]{UserEx.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isPermissionGrantedForProject":
+                            List<Permission> projectPermissions = additionalPermissions.get(args[0]);
+                            if (projectPermissions != null && projectPermissions.contains(args[1])) {
+                                return true;
+                            }
+                            return invoke(delegate, method, args);
+
+                        case "isPermissionGrantedForAnyProject":
+                            if (additionalPermissions.values().stream().anyMatch(list -> list.contains(args[0]))) {
+                                return true;
+                            }
+                            return invoke(delegate, method, args);
+
+                        case "getPermissionsGrantedForProject":
+                            projectPermissions = additionalPermissions.get(args[0]);
+                            if (projectPermissions != null) {
+                                List<Permission> base = ((Permissions) invoke(delegate, method, args)).toList();
+                                base.addAll(projectPermissions);
+                                return new Permissions(base);
+                            }
+                            return invoke(delegate, method, args);
+
+                        default:
+                            return invoke(delegate, method, args);
+                    }
+                });
+    }
+
+    private static Object invoke(@NotNull UserEx delegate, @NotNull Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
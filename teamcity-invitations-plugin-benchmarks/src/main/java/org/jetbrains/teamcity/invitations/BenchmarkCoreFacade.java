@@ -0,0 +1,230 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.Permissions;
+import jetbrains.buildServer.serverSide.auth.Role;
+import jetbrains.buildServer.serverSide.impl.ProjectFeatureDescriptorImpl;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.impl.UserEx;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * In-memory stand-in for the TeamCity server used by the benchmarks, similar to the one used by the tests but
+ * without security checks and events, so that the numbers reflect the plugin code only.
+ */
+public class BenchmarkCoreFacade implements TeamCityCoreFacade {
+
+    private final Map<String, Role> roles = new HashMap<>();
+    private final Map<String, SProject> projects = new LinkedHashMap<>();
+    private final List<SUser> users = new ArrayList<>();
+    private final SProject root;
+
+    public BenchmarkCoreFacade() {
+        root = addProject(null, "_Root");
+        addRole("PROJECT_ADMIN", new Permissions(Permission.CREATE_SUB_PROJECT, Permission.EDIT_PROJECT, Permission.CHANGE_USER_ROLES_IN_PROJECT));
+        addRole("PROJECT_DEVELOPER", new Permissions(Permission.RUN_BUILD));
+    }
+
+    @NotNull
+    static <T> T stub(@NotNull Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    @NotNull
+    Role addRole(@NotNull String id, @NotNull Permissions permissions) {
+        Role role = stub(Role.class);
+        when(role.getId()).thenReturn(id);
+        when(role.getPermissions()).thenReturn(permissions);
+        when(role.isProjectAssociationSupported()).thenReturn(true);
+        when(role.describe(anyBoolean())).thenReturn(id);
+        roles.put(id, role);
+        return role;
+    }
+
+    /**
+     * Creates a user with all the permissions, so that every invitation is available for it.
+     */
+    @NotNull
+    UserEx createUser(@NotNull String username) {
+        UserEx user = stub(UserEx.class);
+        when(user.getId()).thenReturn(users.size() + 1L);
+        when(user.getUsername()).thenReturn(username);
+        when(user.describe(anyBoolean())).thenReturn(username);
+        when(user.getAssociatedUser()).thenReturn(user);
+        when(user.isPermissionGrantedForProject(anyString(), any(Permission.class))).thenReturn(true);
+        when(user.isPermissionGrantedForAnyProject(any(Permission.class))).thenReturn(true);
+        when(user.isPermissionGrantedGlobally(any(Permission.class))).thenReturn(true);
+        when(user.getPermissionsGrantedForProject(anyString())).thenReturn(new Permissions(Permission.RUN_BUILD));
+        when(user.getGlobalPermissions()).thenReturn(new Permissions(Permission.values()));
+        users.add(user);
+        return user;
+    }
+
+    @NotNull
+    SProject addProject(@Nullable String parentId, @NotNull String id) {
+        SProject project = stub(SProject.class);
+        when(project.getProjectId()).thenReturn(id);
+        when(project.getExternalId()).thenReturn(id);
+        when(project.getName()).thenReturn(id);
+        when(project.getFullName()).thenReturn(id);
+        when(project.describe(anyBoolean())).thenReturn(id);
+        when(project.getParentProjectId()).thenReturn(parentId);
+
+        List<SProjectFeatureDescriptor> features = new CopyOnWriteArrayList<>();
+        AtomicInteger featureIds = new AtomicInteger();
+        when(project.getOwnFeaturesOfType(anyString())).thenAnswer(invocation -> {
+            String type = invocation.getArgument(0);
+            List<SProjectFeatureDescriptor> result = new ArrayList<>();
+            for (SProjectFeatureDescriptor feature : features) {
+                if (feature.getType().equals(type)) result.add(feature);
+            }
+            return result;
+        });
+        when(project.addFeature(anyString(), anyMap())).thenAnswer(invocation -> {
+            SProjectFeatureDescriptor feature = new ProjectFeatureDescriptorImpl(id + "_" + featureIds.getAndIncrement(), invocation.getArgument(0),
+                    new HashMap<>(invocation.<Map<String, String>>getArgument(1)), id);
+            features.add(feature);
+            return feature;
+        });
+        when(project.updateFeature(anyString(), anyString(), anyMap())).thenAnswer(invocation -> {
+            for (int i = 0; i < features.size(); i++) {
+                if (features.get(i).getId().equals(invocation.getArgument(0))) {
+                    features.set(i, new ProjectFeatureDescriptorImpl(invocation.getArgument(0), invocation.getArgument(1),
+                            new HashMap<>(invocation.<Map<String, String>>getArgument(2)), id));
+                    return true;
+                }
+            }
+            return false;
+        });
+        when(project.removeFeature(anyString())).thenAnswer(invocation -> {
+            for (SProjectFeatureDescriptor feature : features) {
+                if (feature.getId().equals(invocation.getArgument(0))) {
+                    features.remove(feature);
+                    return feature;
+                }
+            }
+            return null;
+        });
+        projects.put(id, project);
+        return project;
+    }
+
+    @NotNull
+    SProject getRoot() {
+        return root;
+    }
+
+    @Nullable
+    @Override
+    public Role findRoleById(String roleId) {
+        return roles.get(roleId);
+    }
+
+    @NotNull
+    @Override
+    public List<Role> getAvailableRoles() {
+        return new ArrayList<>(roles.values());
+    }
+
+    @NotNull
+    @Override
+    public Collection<SUserGroup> getAvailableGroups() {
+        return Collections.emptyList();
+    }
+
+    @Nullable
+    @Override
+    public SUserGroup findGroup(String groupKey) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public SUser getUser(long userId) {
+        return userId > 0 && userId <= users.size() ? users.get((int) userId - 1) : null;
+    }
+
+    @NotNull
+    @Override
+    public AuthorityHolder getLoggedInUser() {
+        return users.get(0);
+    }
+
+    @Override
+    public void addRole(@NotNull SUser user, @NotNull Role role, @NotNull String projectId) {
+    }
+
+    @Override
+    public void assignToGroup(@NotNull SUser user, @NotNull SUserGroup group) {
+    }
+
+    @NotNull
+    @Override
+    public SProject createProject(@NotNull String parentExtId, @NotNull String name) {
+        return addProject(parentExtId, name);
+    }
+
+    @Nullable
+    @Override
+    public SProject findProjectByExtId(@Nullable String projectExtId) {
+        return projects.get(projectExtId);
+    }
+
+    @Nullable
+    @Override
+    public SProject findProjectByIntId(String projectIntId) {
+        return projects.get(projectIntId);
+    }
+
+    @NotNull
+    @Override
+    public List<SProject> getActiveProjects() {
+        return new ArrayList<>(projects.values());
+    }
+
+    @Override
+    public void persist(@NotNull SProject project, @NotNull String description) {
+    }
+
+    @Override
+    public <T> T runAsSystem(Supplier<T> action) {
+        return action.get();
+    }
+
+    @NotNull
+    @Override
+    public String getPluginResourcesPath(@NotNull String path) {
+        return path;
+    }
+}
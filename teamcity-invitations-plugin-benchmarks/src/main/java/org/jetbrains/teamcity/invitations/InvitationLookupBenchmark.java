@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.ServerResponsibilityImpl;
+import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
+import jetbrains.buildServer.users.impl.UserEx;
+import jetbrains.buildServer.util.ExceptionUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Per-request token lookups done by the landing and proceed controllers and by the invitations registry check,
+ * compared to the same lookups wrapped into a system security context switch as {@link TeamCityCoreFacadeImpl#runAsSystem} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvitationLookupBenchmark {
+
+    private static final int INVITATIONS_COUNT = 1000;
+
+    private SecurityContextImpl securityContext;
+    private InvitationsStorage storage;
+    private String[] tokens;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        securityContext = new SecurityContextImpl(new ServerResponsibilityImpl());
+        BenchmarkCoreFacade core = new BenchmarkCoreFacade();
+        UserEx inviter = core.createUser("admin");
+        storage = InvitationsStorageBenchmark.newStorage(core);
+        JoinProjectInvitationType joinProjectInvitationType = new JoinProjectInvitationType(storage, core, new InvitationLandingProvider(core));
+
+        tokens = new String[INVITATIONS_COUNT];
+        storage.inBatch(() -> {
+            for (int i = 0; i < INVITATIONS_COUNT; i++) {
+                SProject project = core.addProject(core.getRoot().getProjectId(), "Project" + i);
+                tokens[i] = "token" + i;
+                storage.addInvitation(joinProjectInvitationType.createNewInvitation(inviter, "Join Project" + i, tokens[i], project,
+                        "PROJECT_DEVELOPER", null, true, "Welcome"));
+            }
+            return null;
+        });
+        storage.getInvitation(tokens[0]);
+    }
+
+    private String nextToken() {
+        int result = next;
+        next = result + 1 == INVITATIONS_COUNT ? 0 : result + 1;
+        return tokens[result];
+    }
+
+    @Benchmark
+    public Invitation getInvitation() {
+        return storage.getInvitation(nextToken());
+    }
+
+    @Benchmark
+    public Invitation getInvitationAsSystem() {
+        String token = nextToken();
+        return runAsSystem(() -> storage.getInvitation(token));
+    }
+
+    @Benchmark
+    public boolean hasInvitation() {
+        String token = nextToken();
+        return InvitationsStorage.isWellFormedToken(token) && storage.hasInvitation(token);
+    }
+
+    @Benchmark
+    public boolean hasInvitationAsSystem() {
+        String token = nextToken();
+        return runAsSystem(() -> storage.getInvitation(token)) != null;
+    }
+
+    private <T> T runAsSystem(Supplier<T> action) {
+        try {
+            return securityContext.runAsSystem(action::get);
+        } catch (Throwable throwable) {
+            ExceptionUtil.rethrowAsRuntimeException(throwable);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of an invitation to the project feature parameters and back, done on every index build and invitation update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvitationSerializationBenchmark {
+
+    private JoinProjectInvitationType joinProjectInvitationType;
+    private SProject project;
+    private JoinProjectInvitationType.InvitationImpl invitation;
+    private Map<String, String> params;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkCoreFacade core = new BenchmarkCoreFacade();
+        joinProjectInvitationType = new JoinProjectInvitationType(InvitationsStorageBenchmark.newStorage(core), core, new InvitationLandingProvider(core));
+        project = core.addProject(core.getRoot().getProjectId(), "Project");
+        invitation = joinProjectInvitationType.createNewInvitation(core.createUser("admin"), "Join Project", "token", project,
+                "PROJECT_DEVELOPER", null, true, "Welcome");
+        params = invitation.asMap();
+    }
+
+    @Benchmark
+    public Map<String, String> asMap() {
+        return invitation.asMap();
+    }
+
+    @Benchmark
+    public Invitation readFrom() {
+        return joinProjectInvitationType.readFrom(params, project);
+    }
+
+    @Benchmark
+    public Invitation roundTrip() {
+        return joinProjectInvitationType.readFrom(invitation.asMap(), project);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.ProjectsModelListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.impl.UserEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token lookups and per-project listings of {@link InvitationsStorage} with one join project invitation per project.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvitationsStorageBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int projectsCount;
+
+    private BenchmarkCoreFacade core;
+    private InvitationsStorage storage;
+    private SProject[] projects;
+    private String[] tokens;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        core = new BenchmarkCoreFacade();
+        UserEx inviter = core.createUser("admin");
+        storage = newStorage(core);
+        JoinProjectInvitationType joinProjectInvitationType = new JoinProjectInvitationType(storage, core, new InvitationLandingProvider(core));
+
+        projects = new SProject[projectsCount];
+        tokens = new String[projectsCount];
+        storage.inBatch(() -> {
+            for (int i = 0; i < projectsCount; i++) {
+                projects[i] = core.addProject(core.getRoot().getProjectId(), "Project" + i);
+                tokens[i] = "token" + i;
+                storage.addInvitation(joinProjectInvitationType.createNewInvitation(inviter, "Join Project" + i, tokens[i], projects[i],
+                        "PROJECT_DEVELOPER", null, true, "Welcome"));
+            }
+            return null;
+        });
+        storage.getInvitation(tokens[0]);
+    }
+
+    @NotNull
+    static InvitationsStorage newStorage(@NotNull BenchmarkCoreFacade core) {
+        return new InvitationsStorage(core, EventDispatcher.create(ProjectsModelListener.class), new InvitationsMetrics());
+    }
+
+    private int nextIndex() {
+        int result = next;
+        next = result + 1 == projectsCount ? 0 : result + 1;
+        return result;
+    }
+
+    @Benchmark
+    public Invitation getInvitation() {
+        return storage.getInvitation(tokens[nextIndex()]);
+    }
+
+    @Benchmark
+    public Invitation getInvitationUnknownToken() {
+        return storage.getInvitation("unknown-token");
+    }
+
+    @Benchmark
+    public List<Invitation> getProjectInvitations() {
+        return storage.getInvitations(projects[nextIndex()]);
+    }
+
+    /**
+     * The first lookup in a fresh storage, which has to scan all the projects.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public Invitation getInvitationCold(ColdStorage cold) {
+        return cold.storage.getInvitation(tokens[projectsCount - 1]);
+    }
+
+    @State(Scope.Thread)
+    public static class ColdStorage {
+        InvitationsStorage storage;
+
+        @Setup(Level.Invocation)
+        public void setUp(InvitationsStorageBenchmark benchmark) {
+            storage = newStorage(benchmark.core);
+            new JoinProjectInvitationType(storage, benchmark.core, new InvitationLandingProvider(benchmark.core));
+        }
+    }
+}
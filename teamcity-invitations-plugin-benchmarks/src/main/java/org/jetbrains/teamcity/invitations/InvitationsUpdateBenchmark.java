@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.impl.UserEx;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.jetbrains.teamcity.invitations.InvitationsStorageBenchmark.newStorage;
+
+/**
+ * Updates and removals of invitations in one project with a growing number of invitations,
+ * the costs which depend on the project size rather than on the number of projects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvitationsUpdateBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int invitationsPerProject;
+
+    private InvitationsStorage storage;
+    private SProject project;
+    private Invitation[] invitations;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkCoreFacade core = new BenchmarkCoreFacade();
+        UserEx inviter = core.createUser("admin");
+        storage = newStorage(core);
+        JoinProjectInvitationType joinProjectInvitationType = new JoinProjectInvitationType(storage, core, new InvitationLandingProvider(core));
+
+        project = core.addProject(core.getRoot().getProjectId(), "Project");
+        invitations = new Invitation[invitationsPerProject];
+        for (int i = 0; i < invitationsPerProject; i++) {
+            invitations[i] = joinProjectInvitationType.createNewInvitation(inviter, "Join Project " + i, "token" + i, project,
+                    "PROJECT_DEVELOPER", null, true, "Welcome");
+        }
+        storage.addInvitations(Arrays.asList(invitations));
+        storage.getInvitation(invitations[0].getToken());
+    }
+
+    private int nextIndex() {
+        int result = next;
+        next = result + 1 == invitationsPerProject ? 0 : result + 1;
+        return result;
+    }
+
+    @Benchmark
+    public void updateInvitation() {
+        storage.updateInvitation(invitations[nextIndex()], "Invitation updated");
+    }
+
+    @Benchmark
+    public Invitation removeInvitation(RemovedInvitation removed) {
+        removed.invitation = invitations[nextIndex()];
+        return storage.removeInvitation(project, removed.invitation.getToken());
+    }
+
+    /**
+     * Adds the invitation removed by the previous invocation back, so that every removal finds its invitation.
+     */
+    @State(Scope.Thread)
+    public static class RemovedInvitation {
+        Invitation invitation;
+
+        @Setup(Level.Invocation)
+        public void setUp(InvitationsUpdateBenchmark benchmark) {
+            if (invitation != null) {
+                benchmark.storage.addInvitation(invitation);
+                invitation = null;
+            }
+        }
+    }
+}
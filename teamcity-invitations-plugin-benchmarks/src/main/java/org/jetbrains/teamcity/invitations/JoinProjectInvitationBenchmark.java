@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.impl.UserEx;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls made for a join project invitation while rendering the landing page and the admin tab.
+ * A zero TTL disables memoization of the role, the group and the assignable roles of the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinProjectInvitationBenchmark {
+
+    @Param({"0", "10000"})
+    public String ttlMs;
+
+    private JoinProjectInvitationType.InvitationImpl invitation;
+    private UserEx user;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("teamcity.invitations.roleResolution.ttlMs", ttlMs);
+        System.setProperty("teamcity.invitations.assignableRoles.ttlMs", ttlMs);
+        BenchmarkCoreFacade core = new BenchmarkCoreFacade();
+        JoinProjectInvitationType joinProjectInvitationType = new JoinProjectInvitationType(InvitationsStorageBenchmark.newStorage(core), core,
+                new InvitationLandingProvider(core));
+        user = core.createUser("admin");
+        SProject project = core.addProject(core.getRoot().getProjectId(), "Project");
+        invitation = joinProjectInvitationType.createNewInvitation(user, "Join Project", "token", project,
+                "PROJECT_DEVELOPER", null, true, "Welcome");
+    }
+
+    @Benchmark
+    public String describe() {
+        return invitation.describe(false);
+    }
+
+    @Benchmark
+    public boolean isAvailableFor() {
+        return invitation.isAvailableFor(user);
+    }
+
+    @Benchmark
+    public String getValidationError() {
+        return invitation.getValidationError();
+    }
+}
@@ -26,11 +26,16 @@ import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractInvitation implements Invitation {
     public static final String TOKEN_PARAM_NAME = Constants.SECURE_PROPERTY_PREFIX + "token";
+    static final String USED_COUNT_PARAM_NAME = "usedCount";
     protected final String token;
     protected final boolean multi;
     protected final long createdByUserId;
@@ -40,6 +45,9 @@ public abstract class AbstractInvitation implements Invitation {
     private final String name;
     protected volatile boolean enabled;
     protected volatile String disabledText;
+    protected volatile int maxUses;
+    protected volatile long expiresAt;
+    private volatile AtomicInteger usedCount = new AtomicInteger();
 
     protected AbstractInvitation(@NotNull SProject project, String name, @NotNull String token, boolean multi, InvitationType type, long createdByUserId,
                                  @NotNull String welcomeText) {
@@ -61,6 +69,9 @@ public abstract class AbstractInvitation implements Invitation {
         this.createdByUserId = Long.parseLong(params.get("createdByUserId"));
         this.welcomeText = params.get("welcomeText");
         this.disabledText = params.get("disabledText");
+        this.maxUses = parseCount(params.get("maxUses"));
+        this.usedCount.set(parseCount(params.get(USED_COUNT_PARAM_NAME)));
+        this.expiresAt = parseTimestamp(params.get("expiresAt"));
         this.type = type;
         this.project = project;
     }
@@ -104,6 +115,13 @@ public abstract class AbstractInvitation implements Invitation {
             result.put("disabledText", disabledText);
         }
         result.put("multi", multi + "");
+        if (maxUses > 0) {
+            result.put("maxUses", maxUses + "");
+            result.put(USED_COUNT_PARAM_NAME, usedCount.get() + "");
+        }
+        if (expiresAt > 0) {
+            result.put("expiresAt", expiresAt + "");
+        }
         result.put("createdByUserId", createdByUserId + "");
         result.put("welcomeText", welcomeText);
         result.put(Constants.SECURE_PROPERTY_PREFIX + "token", token);
@@ -140,4 +158,100 @@ public abstract class AbstractInvitation implements Invitation {
     public String getDisabledText() {
         return disabledText;
     }
+
+    @Override
+    public int getMaxUses() {
+        return maxUses;
+    }
+
+    public void setMaxUses(int maxUses) {
+        this.maxUses = Math.max(maxUses, 0);
+    }
+
+    @Override
+    public int getUsedCount() {
+        return usedCount.get();
+    }
+
+    @Override
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = Math.max(expiresAt, 0);
+    }
+
+    @Override
+    public boolean isExpired(long now) {
+        long expiresAt = this.expiresAt;
+        return expiresAt > 0 && expiresAt <= now;
+    }
+
+    /**
+     * Returns the last day the invitation can be accepted in the server time zone or null if it never expires.
+     */
+    @Nullable
+    public LocalDate getExpirationDate() {
+        long expiresAt = this.expiresAt;
+        return expiresAt > 0 ? Instant.ofEpochMilli(expiresAt - 1).atZone(ZoneId.systemDefault()).toLocalDate() : null;
+    }
+
+    /**
+     * Makes this instance count uses together with another instance of the same invitation, e.g. the one it replaces
+     * after an edit or a reload from the project feature. The greater of the two counts is kept.
+     */
+    void shareUsedCountWith(@NotNull AbstractInvitation other) {
+        if (other.usedCount != usedCount) {
+            other.usedCount.accumulateAndGet(usedCount.get(), Math::max);
+            usedCount = other.usedCount;
+        }
+    }
+
+    /**
+     * Counts one more acceptance of the invitation limited by the number of uses.
+     *
+     * @return false if the invitation has been used the maximum number of times already
+     */
+    boolean tryUse() {
+        int limit = maxUses;
+        AtomicInteger counter = usedCount;
+        int used;
+        do {
+            used = counter.get();
+            if (used >= limit) {
+                return false;
+            }
+        } while (!counter.compareAndSet(used, used + 1));
+        return true;
+    }
+
+    /**
+     * Reverts {@link #tryUse()} of the acceptance which failed.
+     */
+    void cancelUse() {
+        usedCount.updateAndGet(used -> used > 0 ? used - 1 : 0);
+    }
+
+    private static long parseTimestamp(@Nullable String value) {
+        if (StringUtil.isEmptyOrSpaces(value)) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int parseCount(@Nullable String value) {
+        if (StringUtil.isEmptyOrSpaces(value)) {
+            return 0;
+        }
+        try {
+            return Math.max(Integer.parseInt(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
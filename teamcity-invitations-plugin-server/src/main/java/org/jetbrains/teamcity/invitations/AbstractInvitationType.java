@@ -24,6 +24,9 @@ import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 import javax.servlet.http.HttpServletRequest;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 
 public abstract class AbstractInvitationType<T extends Invitation> implements InvitationType<T> {
 
@@ -36,6 +39,7 @@ public abstract class AbstractInvitationType<T extends Invitation> implements In
         this.core = core;
         this.invitationLandingProvider = invitationLandingProvider;
         invitationsStorage.registerInvitationType(this);
+        invitationsStorage.addInvitationDroppedListener(invitationLandingProvider::invitationDropped);
     }
 
     protected void invitationWorkflowFinished(@NotNull Invitation invitation) {
@@ -45,6 +49,13 @@ public abstract class AbstractInvitationType<T extends Invitation> implements In
         }
     }
 
+    /**
+     * Called when the user who has accepted the invitation fails or gives up to complete the workflow.
+     */
+    protected void invitationWorkflowAborted(@NotNull Invitation invitation) {
+        invitationsStorage.releaseClaim(invitation);
+    }
+
     @Override
     public void validate(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull ActionErrors errors) {
         if (StringUtil.isEmptyOrSpaces(request.getParameter("name"))) {
@@ -54,6 +65,50 @@ public abstract class AbstractInvitationType<T extends Invitation> implements In
         if (StringUtil.isEmptyOrSpaces(request.getParameter("welcomeText"))) {
             errors.addError(new InvalidProperty("welcomeText", "Welcome text must not be empty"));
         }
+
+        String maxUses = request.getParameter("maxUses");
+        if (!StringUtil.isEmptyOrSpaces(maxUses) && Boolean.parseBoolean(request.getParameter("multiuser"))) {
+            try {
+                if (Integer.parseInt(maxUses.trim()) < 1) {
+                    errors.addError(new InvalidProperty("maxUses", "Maximum number of uses must be a positive number"));
+                }
+            } catch (NumberFormatException e) {
+                errors.addError(new InvalidProperty("maxUses", "Maximum number of uses must be a positive number"));
+            }
+        }
+
+        String expirationDate = request.getParameter("expirationDate");
+        if (!StringUtil.isEmptyOrSpaces(expirationDate)) {
+            try {
+                if (LocalDate.parse(expirationDate.trim()).isBefore(LocalDate.now())) {
+                    errors.addError(new InvalidProperty("expirationDate", "Expiration date must not be in the past"));
+                }
+            } catch (DateTimeParseException e) {
+                errors.addError(new InvalidProperty("expirationDate", "Expiration date must be in the YYYY-MM-DD format"));
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of uses of the validated reusable invitation or 0 when it is not limited.
+     */
+    protected static int getMaxUses(@NotNull HttpServletRequest request) {
+        String maxUses = request.getParameter("maxUses");
+        if (StringUtil.isEmptyOrSpaces(maxUses) || !Boolean.parseBoolean(request.getParameter("multiuser"))) {
+            return 0;
+        }
+        return Integer.parseInt(maxUses.trim());
+    }
+
+    /**
+     * Returns the time the validated invitation expires at, the end of its expiration date in the server time zone, or 0 if it never expires.
+     */
+    protected static long getExpiresAt(@NotNull HttpServletRequest request) {
+        String expirationDate = request.getParameter("expirationDate");
+        if (StringUtil.isEmptyOrSpaces(expirationDate)) {
+            return 0;
+        }
+        return LocalDate.parse(expirationDate.trim()).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     @NotNull
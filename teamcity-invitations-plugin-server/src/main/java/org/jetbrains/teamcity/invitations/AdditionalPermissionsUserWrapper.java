@@ -21,73 +21,148 @@ import jetbrains.buildServer.serverSide.auth.Permissions;
 import jetbrains.buildServer.users.impl.UserEx;
 import org.jetbrains.annotations.NotNull;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Grants additional per-project permissions to a user while a project is being created from an invitation.
+ * <p>
+ * {@link UserEx} is a large server interface which changes between TeamCity versions, so the wrapper is a {@link Proxy}
+ * created once per wrapper. The overridden methods are recognized by name, all the other calls go to the original user
+ * through method handles created once per method and shared by all the wrappers, see {@link #getDelegateHandle}.
+ */
 public class AdditionalPermissionsUserWrapper {
+    private static final MethodType DELEGATE_HANDLE_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Handles calling the proxied methods on the original user, taking the user and the call arguments as an array.
+     */
+    private static final Map<Method, MethodHandle> ourDelegateHandles = new ConcurrentHashMap<>();
+
     private final UserEx delegate;
-    private final Map<String, List<Permission>> additionalPermissions;
-    private final AtomicBoolean enabled = new AtomicBoolean(true);
+    private final Map<String, ProjectPermissions> additionalPermissions;
+    private final Set<Permission> anyProjectPermissions = EnumSet.noneOf(Permission.class);
+    private final UserEx wrappedUser;
+    private volatile boolean enabled = true;
 
     public AdditionalPermissionsUserWrapper(UserEx originalUser, @NotNull Map<String, List<Permission>> additionalPermissions) {
         this.delegate = originalUser;
-        this.additionalPermissions = new ConcurrentHashMap<>(additionalPermissions);
+        Map<String, ProjectPermissions> permissions = new HashMap<>();
+        additionalPermissions.forEach((projectId, list) -> {
+            EnumSet<Permission> set = EnumSet.noneOf(Permission.class);
+            set.addAll(list);
+            permissions.put(projectId, new ProjectPermissions(set));
+            anyProjectPermissions.addAll(set);
+        });
+        this.additionalPermissions = permissions;
+        this.wrappedUser = (UserEx) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{UserEx.class}, new Handler());
     }
 
     public UserEx getWrappedUser() {
-        return (UserEx) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{UserEx.class},
-                (proxy, method, args) -> {
-                    if (enabled.get()) {
-                        switch (method.getName()) {
-                            case "isPermissionGrantedForProject":
-                                List<Permission> projectPermissions = additionalPermissions.get(args[0]);
-                                if (projectPermissions != null && projectPermissions.contains(args[1])) {
-                                    return true;
-                                } else {
-                                    return invoke(method, args);
-                                }
-
-                            case "isPermissionGrantedForAnyProject":
-                                if (additionalPermissions.values().stream().anyMatch(list -> list.contains(args[0]))) {
-                                    return true;
-                                } else {
-                                    return invoke(method, args);
-                                }
-
-                            case "getPermissionsGrantedForProject": {
-                                projectPermissions = additionalPermissions.get(args[0]);
-                                if (projectPermissions != null) {
-                                    List<Permission> base = ((Permissions) invoke(method, args)).toList();
-                                    base.addAll(projectPermissions);
-                                    return new Permissions(base);
-                                } else {
-                                    return invoke(method, args);
-                                }
-                            }
-
-                            default:
-                                return invoke(method, args);
-                        }
-                    } else {
-                        return invoke(method, args);
+        return wrappedUser;
+    }
+
+    private final class Handler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!enabled) {
+                return AdditionalPermissionsUserWrapper.this.invoke(method, args);
+            }
+
+            switch (method.getName()) {
+                case "isPermissionGrantedForProject": {
+                    ProjectPermissions projectPermissions = additionalPermissions.get(args[0]);
+                    if (projectPermissions != null && projectPermissions.permissions.contains(args[1])) {
+                        return true;
                     }
-                });
+                    break;
+                }
+                case "isPermissionGrantedForAnyProject":
+                    if (anyProjectPermissions.contains(args[0])) {
+                        return true;
+                    }
+                    break;
+                case "getPermissionsGrantedForProject": {
+                    ProjectPermissions projectPermissions = additionalPermissions.get(args[0]);
+                    if (projectPermissions != null) {
+                        return projectPermissions.mergeWith((Permissions) AdditionalPermissionsUserWrapper.this.invoke(method, args));
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            return AdditionalPermissionsUserWrapper.this.invoke(method, args);
+        }
     }
 
-    private Object invoke(Method method, Object[] args) throws Throwable {
-        try {
-            return method.invoke(delegate, args);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException();
+    /**
+     * Additional permissions of a single project together with the last merged result. The original user usually
+     * returns the same {@link Permissions} instance until its roles change, so the merged one is reused in that case.
+     */
+    private static final class ProjectPermissions {
+        private final Set<Permission> permissions;
+        private volatile Merged lastMerged;
+
+        private ProjectPermissions(@NotNull Set<Permission> permissions) {
+            this.permissions = permissions;
         }
+
+        @NotNull
+        Permissions mergeWith(@NotNull Permissions base) {
+            Merged merged = lastMerged;
+            if (merged != null && merged.base == base) {
+                return merged.result;
+            }
+
+            EnumSet<Permission> all = EnumSet.noneOf(Permission.class);
+            all.addAll(base.toList());
+            Permissions result = all.addAll(permissions) ? new Permissions(new ArrayList<>(all)) : base;
+            lastMerged = new Merged(base, result);
+            return result;
+        }
+    }
+
+    private static final class Merged {
+        private final Permissions base;
+        private final Permissions result;
+
+        private Merged(@NotNull Permissions base, @NotNull Permissions result) {
+            this.base = base;
+            this.result = result;
+        }
+    }
+
+    private Object invoke(Method method, Object[] args) throws Throwable {
+        return getDelegateHandle(method).invokeExact((Object) delegate, args != null ? args : NO_ARGS);
+    }
+
+    @NotNull
+    private static MethodHandle getDelegateHandle(@NotNull Method method) {
+        return ourDelegateHandles.computeIfAbsent(method, m -> {
+            try {
+                return MethodHandles.publicLookup().unreflect(m)
+                        .asSpreader(Object[].class, m.getParameterCount())
+                        .asType(DELEGATE_HANDLE_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access " + m, e);
+            }
+        });
     }
 
     public void disable() {
-        enabled.set(false);
+        enabled = false;
     }
 }
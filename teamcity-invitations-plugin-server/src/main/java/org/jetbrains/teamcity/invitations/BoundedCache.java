@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent cache whose entries expire after the time to live and which evicts the oldest entries when it gets full.
+ * Both limits are read on every put, so they can be changed with internal properties without a restart.
+ * Lookups don't lock, eviction is done by one thread at a time and leaves the cache 10% below the limit.
+ */
+@ThreadSafe
+final class BoundedCache<K, V> {
+
+    private final Map<K, Entry<V>> myEntries = new ConcurrentHashMap<>();
+    private final AtomicLong myPutsCount = new AtomicLong();
+    @NotNull
+    private final LongSupplier myTtlMillis;
+    @NotNull
+    private final IntSupplier myMaxEntries;
+
+    /**
+     * @param ttlMillis  time to live of the entries, {@code Long.MAX_VALUE} for entries which don't expire
+     * @param maxEntries maximum number of entries
+     */
+    BoundedCache(@NotNull LongSupplier ttlMillis, @NotNull IntSupplier maxEntries) {
+        myTtlMillis = ttlMillis;
+        myMaxEntries = maxEntries;
+    }
+
+    @Nullable
+    V get(@NotNull K key) {
+        Entry<V> entry = myEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            myEntries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Puts the value unless the time to live is not positive, evicts the expired and the oldest entries first if the cache is full.
+     */
+    void put(@NotNull K key, @NotNull V value) {
+        long ttl = myTtlMillis.getAsLong();
+        if (ttl <= 0) {
+            myEntries.remove(key);
+            return;
+        }
+        int maxEntries = myMaxEntries.getAsInt();
+        if (myEntries.size() >= maxEntries && !myEntries.containsKey(key)) {
+            evict(maxEntries);
+        }
+        long now = System.currentTimeMillis();
+        myEntries.put(key, new Entry<>(value, ttl >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl, myPutsCount.incrementAndGet()));
+    }
+
+    void remove(@NotNull K key) {
+        myEntries.remove(key);
+    }
+
+    void removeExpired() {
+        long now = System.currentTimeMillis();
+        myEntries.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    void removeIf(@NotNull Predicate<? super V> predicate) {
+        myEntries.values().removeIf(entry -> predicate.test(entry.value));
+    }
+
+    int size() {
+        return myEntries.size();
+    }
+
+    private synchronized void evict(int maxEntries) {
+        if (myEntries.size() < maxEntries) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        myEntries.values().removeIf(entry -> entry.isExpired(now));
+
+        int excess = myEntries.size() - Math.max(0, maxEntries - maxEntries / 10 - 1);
+        if (excess > 0) {
+            List<Map.Entry<K, Entry<V>>> oldestFirst = new ArrayList<>(myEntries.entrySet());
+            oldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().putNumber));
+            for (int i = 0; i < excess && i < oldestFirst.size(); i++) {
+                myEntries.remove(oldestFirst.get(i).getKey(), oldestFirst.get(i).getValue());
+            }
+        }
+    }
+
+    private static final class Entry<V> {
+        @NotNull
+        private final V value;
+        private final long expiresAt;
+        private final long putNumber;
+
+        private Entry(@NotNull V value, long expiresAt, long putNumber) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.putNumber = putNumber;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
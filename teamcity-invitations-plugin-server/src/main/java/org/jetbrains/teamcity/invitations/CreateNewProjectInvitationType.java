@@ -36,8 +36,8 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Arrays.asList;
 import static java.util.Comparator.comparingInt;
@@ -49,8 +49,11 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
     @NotNull
     private final TeamCityCoreFacade core;
 
+    /**
+     * Invitations accepted by users who have not created their project yet, by {@link #inProgressKey(long, String)}.
+     */
     @NotNull
-    private final List<InvitationInProgress> myInvitationInProgresses = new CopyOnWriteArrayList<>();
+    private final Map<String, InvitationInProgress> myInvitationInProgresses = new ConcurrentHashMap<>();
 
     public CreateNewProjectInvitationType(@NotNull InvitationsStorage invitationsStorage,
                                           @NotNull TeamCityCoreFacade core,
@@ -61,16 +64,23 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         events.addListener(new ProjectsModelListenerAdapter() {
             @Override
             public void projectCreated(@NotNull String projectId, @Nullable SUser user) {
+                if (user == null || myInvitationInProgresses.isEmpty()) {
+                    return;
+                }
                 SProject created = core.findProjectByIntId(projectId);
-                if (created != null && user != null) {
-                    Optional<InvitationInProgress> processingInvitation = myInvitationInProgresses.stream().filter(i -> i.isOurProjectCreation(created, user)).findFirst();
-                    if (processingInvitation.isPresent()) {
-                        core.addRole(user, processingInvitation.get().invitation.getRole(), projectId);
-                        processingInvitation.get().dispose();
-                        myInvitationInProgresses.removeIf(i -> i.isOurProjectCreation(created, user));
-                        invitationWorkflowFinished(processingInvitation.get().invitation);
-                        Loggers.ACTIVITIES.info("User " + user.describe(false) + " creates " + created.describe(false) + " project using the invitation " + processingInvitation.get().invitation.describe(false) + "");
-                    }
+                if (created == null || created.getParentProjectId() == null) {
+                    return;
+                }
+                InvitationInProgress processingInvitation = myInvitationInProgresses.remove(inProgressKey(user.getId(), created.getParentProjectId()));
+                if (processingInvitation != null && processingInvitation.isExpired(System.currentTimeMillis())) {
+                    processingInvitation.dispose();
+                    invitationWorkflowAborted(processingInvitation.invitation);
+                    Loggers.SERVER.info("Invitation " + processingInvitation.invitation.describe(false) + " accepted by " + user.describe(false) + " has expired before the project was created");
+                } else if (processingInvitation != null) {
+                    core.addRole(user, processingInvitation.invitation.getRole(), projectId);
+                    processingInvitation.dispose();
+                    invitationWorkflowFinished(processingInvitation.invitation);
+                    Loggers.ACTIVITIES.info("User " + user.describe(false) + " creates " + created.describe(false) + " project using the invitation " + processingInvitation.invitation.describe(false) + "");
                 }
             }
         });
@@ -117,6 +127,8 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         modelAndView.getModel().put("roles", availableRoles);
         modelAndView.getModel().put("name", invitation == null ? getDescription() : invitation.getName());
         modelAndView.getModel().put("multiuser", invitation == null ? "true" : invitation.multi);
+        modelAndView.getModel().put("maxUses", invitation == null || invitation.maxUses == 0 ? "" : invitation.maxUses);
+        modelAndView.getModel().put("expirationDate", invitation == null || invitation.getExpirationDate() == null ? "" : invitation.getExpirationDate().toString());
         modelAndView.getModel().put("roleId", invitation == null ? (availableRoles.size() > 0 ? availableRoles.get(0) : null) : invitation.roleId);
         modelAndView.getModel().put("welcomeText", invitation == null ?
                 user.getDescriptiveName() + " invites you to join TeamCity and create a project under " + project.getFullName() :
@@ -161,12 +173,48 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         boolean multiuser = Boolean.parseBoolean(request.getParameter("multiuser"));
         SUser currentUser = SessionUser.getUser(request);
         InvitationImpl invitation = new InvitationImpl(currentUser, name, token, project, roleId, multiuser, welcomeText);
+        invitation.setMaxUses(getMaxUses(request));
+        invitation.setExpiresAt(getExpiresAt(request));
         if (!invitation.isAvailableFor(currentUser)) {
             throw new AccessDeniedException(currentUser, "You don't have permissions to create the invitation");
         }
         return invitation;
     }
 
+    /**
+     * @return number of accepted invitations which wait for the user to create a project
+     */
+    public int getInProgressInvitationsCount() {
+        return myInvitationInProgresses.size();
+    }
+
+    /**
+     * Forgets the accepted invitations whose users haven't created a project in time
+     * (see {@code teamcity.invitations.createProject.inProgressTtlMs}) and takes the additional permissions back.
+     *
+     * @return number of evicted invitations
+     */
+    public int evictExpiredInvitationsInProgress() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Map.Entry<String, InvitationInProgress> entry : myInvitationInProgresses.entrySet()) {
+            InvitationInProgress inProgress = entry.getValue();
+            if (inProgress.isExpired(now) && myInvitationInProgresses.remove(entry.getKey(), inProgress)) {
+                inProgress.dispose();
+                invitationWorkflowAborted(inProgress.invitation);
+                evicted++;
+                Loggers.SERVER.info("Invitation " + inProgress.invitation.describe(false) + " accepted by " + inProgress.user.describe(false) +
+                        " has expired before the project was created");
+            }
+        }
+        return evicted;
+    }
+
+    @NotNull
+    private static String inProgressKey(long userId, @NotNull String parentProjectId) {
+        return userId + ":" + parentProjectId;
+    }
+
     private static final class InvitationInProgress {
         @NotNull
         private final SUser user;
@@ -174,15 +222,17 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         private final InvitationImpl invitation;
         @NotNull
         private final Runnable disposeAction;
+        private final long expiresAt;
 
-        private InvitationInProgress(@NotNull SUser user, @NotNull InvitationImpl invitation, @NotNull Runnable disposeAction) {
+        private InvitationInProgress(@NotNull SUser user, @NotNull InvitationImpl invitation, @NotNull Runnable disposeAction, long expiresAt) {
             this.user = user;
             this.invitation = invitation;
             this.disposeAction = disposeAction;
+            this.expiresAt = expiresAt;
         }
 
-        public boolean isOurProjectCreation(@NotNull SProject created, @NotNull SUser creator) {
-            return creator.getId() == this.user.getId() && invitation.getProject().getProjectId().equals(created.getParentProjectId());
+        public boolean isExpired(long now) {
+            return now >= expiresAt;
         }
 
         public void dispose() {
@@ -241,7 +291,13 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
 
             AdditionalPermissionsUserWrapper wrapper = new AdditionalPermissionsUserWrapper(originalUser, additionalPermissions);
             SessionUser.setUser(request, wrapper.getWrappedUser());
-            myInvitationInProgresses.add(new InvitationInProgress(originalUser, this, wrapper::disable));
+            InvitationInProgress previous = myInvitationInProgresses.put(inProgressKey(originalUser.getId(), project.getProjectId()),
+                    new InvitationInProgress(originalUser, this, wrapper::disable, System.currentTimeMillis() +
+                            TeamCityProperties.getLong("teamcity.invitations.createProject.inProgressTtlMs", TimeUnit.HOURS.toMillis(24))));
+            if (previous != null) {
+                previous.dispose();
+                invitationWorkflowAborted(previous.invitation);
+            }
             return new ModelAndView(new RedirectView(new RelativeWebLinks().getCreateProjectPageUrl(project.getExternalId()), true));
         }
 
@@ -57,6 +57,31 @@ public interface Invitation extends Loggable {
 
     boolean isReusable();
 
+    /**
+     * Returns how many times a reusable invitation can be accepted or 0 if the number of uses is not limited.
+     */
+    default int getMaxUses() {
+        return 0;
+    }
+
+    /**
+     * Returns how many times the invitation limited by the number of uses has been accepted.
+     */
+    default int getUsedCount() {
+        return 0;
+    }
+
+    /**
+     * Returns the time in milliseconds the invitation expires at or 0 if it never expires.
+     */
+    default long getExpiresAt() {
+        return 0;
+    }
+
+    default boolean isExpired(long now) {
+        return false;
+    }
+
     /**
      * Check whether the user can view and edit the invitation.
      */
@@ -40,6 +40,7 @@ import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -105,7 +106,7 @@ public class InvitationAdminController extends BaseFormXmlController {
             //return 'edit invitation' view
             String token = request.getParameter("token");
 
-            Invitation found = invitations.getInvitation(token);
+            Invitation found = invitations.findInvitation(project, token);
             if (found == null) {
                 Loggers.SERVER.warn("Unrecognized invitation request (not found invitation): " + WebUtil.getRequestDump(request));
                 return SimpleView.createTextView("Invitation not found");
@@ -147,37 +148,61 @@ public class InvitationAdminController extends BaseFormXmlController {
                 } else {
                     //edit
                     Invitation updated = createFromRequest(token, project, request);
-                    Invitation current = invitations.getInvitation(token);
+                    Invitation current = invitations.findInvitation(project, token);
                     if (current != null) {
                         updated.setEnabled(current.isEnabled());
                         invitations.updateInvitation(updated, "Invitation '" + updated.getName() + "' updated.");
                         ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + updated.getName() + "' updated.");
+                    } else {
+                        ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + token + "' doesn't exist.");
                     }
                 }
 
             } else if (request.getParameter("removeInvitation") != null && token != null) {
-                //delete
-                Invitation invitation = invitations.getInvitation(token);
-                if (invitation != null && !invitation.isAvailableFor(SessionUser.getUser(request))) {
-                    throw new AccessDeniedException(SessionUser.getUser(request), "You don't have permissions to remove invitation " + token);
+                //delete, several tokens can be passed, only the ones found in the project are removed
+                String[] tokens = request.getParameterValues("token");
+                List<String> found = new ArrayList<>();
+                for (String t : tokens) {
+                    Invitation invitation = invitations.findInvitation(project, t);
+                    if (invitation == null) {
+                        continue;
+                    }
+                    if (!invitation.isAvailableFor(SessionUser.getUser(request))) {
+                        throw new AccessDeniedException(SessionUser.getUser(request), "You don't have permissions to remove invitation " + t);
+                    }
+                    found.add(invitation.getToken());
                 }
-                Invitation deleted = invitations.removeInvitation(project, token);
-                if (deleted != null) {
-                    ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + deleted.getName() + "' removed.");
+                List<Invitation> deleted = invitations.removeInvitations(project, found);
+                if (tokens.length > 1) {
+                    ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, deleted.size() + " invitations removed.");
+                } else if (!deleted.isEmpty()) {
+                    ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + deleted.get(0).getName() + "' removed.");
                 } else {
                     ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + token + "' doesn't exist.");
                 }
             } else if (request.getParameter("setEnabled") != null && token != null) {
-                //disable
-                Invitation invitation = invitations.getInvitation(token);
-                if (invitation != null && !invitation.isAvailableFor(SessionUser.getUser(request))) {
-                    throw new AccessDeniedException(SessionUser.getUser(request), "You don't have permissions to edit the invitation " + token);
+                //disable, several tokens can be passed
+                List<Invitation> found = new ArrayList<>();
+                for (String t : request.getParameterValues("token")) {
+                    Invitation invitation = invitations.findInvitation(project, t);
+                    if (invitation == null) {
+                        continue;
+                    }
+                    if (!invitation.isAvailableFor(SessionUser.getUser(request))) {
+                        throw new AccessDeniedException(SessionUser.getUser(request), "You don't have permissions to edit the invitation " + t);
+                    }
+                    found.add(invitation);
                 }
-                if (invitation != null) {
+                if (!found.isEmpty()) {
                     Boolean enabled = Boolean.valueOf(request.getParameter("setEnabled"));
-                    invitation.setEnabled(enabled);
-                    String comment = enabled ? "Invitation '" + invitation.getName() + "' enabled." : "Invitation '" + invitation.getName() + "' disabled.";
-                    invitations.updateInvitation(invitation, comment);
+                    found.forEach(invitation -> invitation.setEnabled(enabled));
+                    String comment;
+                    if (found.size() > 1) {
+                        comment = enabled ? found.size() + " invitations enabled." : found.size() + " invitations disabled.";
+                    } else {
+                        comment = enabled ? "Invitation '" + found.get(0).getName() + "' enabled." : "Invitation '" + found.get(0).getName() + "' disabled.";
+                    }
+                    invitations.updateInvitations(project, found, comment);
                     ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, comment);
                 } else {
                     ActionMessages.getOrCreateMessages(request).addMessage(MESSAGES_KEY, "Invitation '" + token + "' doesn't exist.");
@@ -17,6 +17,7 @@
 package org.jetbrains.teamcity.invitations;
 
 import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -26,16 +27,46 @@ public class InvitationLandingProvider {
     private final TeamCityCoreFacade core;
     private final CopyOnWriteArrayList<Function<Invitation, String>> customProviders = new CopyOnWriteArrayList<>();
 
+    /**
+     * Resolved landings by invitation token. An entry is valid only for the same invitation instance, the storage
+     * creates a new one on every change of the invitation, and for the same set of the registered providers.
+     * Entries of removed, replaced and changed invitations are dropped by {@link #invitationDropped}.
+     */
+    private final BoundedCache<String, ResolvedLanding> myLandingByToken = new BoundedCache<>(() -> Long.MAX_VALUE,
+            () -> TeamCityProperties.getInteger("teamcity.invitations.landingCache.maxEntries", 10_000));
+    private volatile int myProvidersVersion;
+
     public InvitationLandingProvider(TeamCityCoreFacade core) {
         this.core = core;
     }
 
-    public void registerCustomProvider(@NotNull Function<Invitation, String> provider) {
+    public synchronized void registerCustomProvider(@NotNull Function<Invitation, String> provider) {
         customProviders.add(provider);
+        myProvidersVersion++;
     }
 
     @NotNull
     public String getLanding(@NotNull Invitation invitation) {
+        int providersVersion = myProvidersVersion;
+        ResolvedLanding resolved = myLandingByToken.get(invitation.getToken());
+        if (resolved != null && resolved.invitation == invitation && resolved.providersVersion == providersVersion) {
+            return resolved.landing;
+        }
+
+        String landing = resolveLanding(invitation);
+        myLandingByToken.put(invitation.getToken(), new ResolvedLanding(invitation, providersVersion, landing));
+        return landing;
+    }
+
+    /**
+     * Drops the landing resolved for the invitation with the token, called by the storage when the invitation is removed, replaced or changed.
+     */
+    void invitationDropped(@NotNull String token) {
+        myLandingByToken.remove(token);
+    }
+
+    @NotNull
+    private String resolveLanding(@NotNull Invitation invitation) {
         for (Function<Invitation, String> provider : customProviders) {
             String landing = core.runAsSystem(() -> provider.apply(invitation));
             if (landing != null) {
@@ -45,4 +76,18 @@ public class InvitationLandingProvider {
         }
         return core.getPluginResourcesPath("invitationLanding.jsp");
     }
+
+    private static final class ResolvedLanding {
+        @NotNull
+        private final Invitation invitation;
+        private final int providersVersion;
+        @NotNull
+        private final String landing;
+
+        private ResolvedLanding(@NotNull Invitation invitation, int providersVersion, @NotNull String landing) {
+            this.invitation = invitation;
+            this.providersVersion = providersVersion;
+            this.landing = landing;
+        }
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.web.util.WebUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Protects the invitation pages from clients probing random tokens. Tokens which were not found are remembered for a while,
+ * clients requesting unknown tokens too often are rejected and the unknown token requests are reported by periodic summary lines
+ * instead of a warning per request. Only the requests with unknown tokens are limited, known tokens are always served.
+ * <p>
+ * Clients are told apart by the remote address or, when the server is behind a reverse proxy which doesn't rewrite it,
+ * by the last address of the header set by the proxy (see {@code teamcity.invitations.clientAddressHeader}).
+ */
+public class InvitationTokenGuard {
+
+    @NotNull
+    private final InvitationsStorage invitations;
+
+    @NotNull
+    private final InvitationsMetrics metrics;
+
+    private final BoundedCache<String, UnknownToken> myUnknownTokens = new BoundedCache<>(
+            () -> TeamCityProperties.getLong("teamcity.invitations.unknownTokens.ttlMs", TimeUnit.MINUTES.toMillis(1)),
+            InvitationTokenGuard::getMaxEntries);
+    /**
+     * Buckets are put again on every use, so a bucket expires only after it has been idle long enough to refill completely.
+     */
+    private final BoundedCache<String, TokenBucket> myBucketsByClient = new BoundedCache<>(
+            () -> TimeUnit.MINUTES.toMillis(1) * getBurst() / Math.max(1, getRequestsPerMinute()),
+            InvitationTokenGuard::getMaxEntries);
+    private final Map<String, LongAdder> myUnknownTokenRequestsByClient = new ConcurrentHashMap<>();
+    private final LongAdder myUnknownTokenRequests = new LongAdder();
+    private final LongAdder myRejectedRequests = new LongAdder();
+
+    public InvitationTokenGuard(@NotNull InvitationsStorage invitations, @NotNull InvitationsMetrics metrics) {
+        this.invitations = invitations;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the number of seconds a rejected client should wait for its next request to be accepted.
+     */
+    public long getRetryAfterSeconds() {
+        return Math.max(1, TimeUnit.MINUTES.toSeconds(1) / Math.max(1, getRequestsPerMinute()));
+    }
+
+    /**
+     * Looks the invitation up in the storage unless the token is malformed or was not found recently and no invitation has appeared since.
+     * Tokens of the invitations being accepted right now are not remembered as unknown.
+     */
+    @Nullable
+    public Invitation findInvitation(@NotNull String token) {
+        if (!InvitationsStorage.isWellFormedToken(token)) {
+            return null;
+        }
+        long tokensVersion = invitations.getTokensVersion();
+        UnknownToken unknown = myUnknownTokens.get(token);
+        if (unknown != null && unknown.tokensVersion == tokensVersion) {
+            metrics.invitationLookup(false);
+            return null;
+        }
+
+        Invitation invitation = invitations.getInvitation(token);
+        if (invitation == null && !invitations.isClaimed(token)) {
+            myUnknownTokens.put(token, new UnknownToken(tokensVersion));
+        } else if (unknown != null) {
+            myUnknownTokens.remove(token);
+        }
+        return invitation;
+    }
+
+    /**
+     * Records the request with the unknown token charging the client's rate limit.
+     *
+     * @return false if the client has requested too many unknown tokens recently and the request should be rejected
+     */
+    public boolean unknownTokenRequested(@NotNull HttpServletRequest request) {
+        String client = getClient(request);
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = myBucketsByClient.get(client);
+        if (bucket == null) {
+            bucket = new TokenBucket(getBurst(), now);
+        }
+        boolean accepted = bucket.tryConsume(now, getBurst(), getRequestsPerMinute());
+        myBucketsByClient.put(client, bucket);
+        if (!accepted) {
+            myRejectedRequests.increment();
+            return false;
+        }
+
+        myUnknownTokenRequests.increment();
+        if (myUnknownTokenRequestsByClient.size() < getMaxEntries()) {
+            myUnknownTokenRequestsByClient.computeIfAbsent(client, c -> new LongAdder()).increment();
+        }
+        if (Loggers.SERVER.isDebugEnabled()) {
+            Loggers.SERVER.debug("Request with unknown invitation token received: " + WebUtil.getRequestDump(request));
+        }
+        return true;
+    }
+
+    /**
+     * Logs the unknown token requests received since the previous call and forgets the idle clients and the expired unknown tokens.
+     */
+    public void logSummary() {
+        long requests = myUnknownTokenRequests.sumThenReset();
+        long rejected = myRejectedRequests.sumThenReset();
+        Map<String, Long> byClient = new HashMap<>();
+        for (String client : myUnknownTokenRequestsByClient.keySet()) {
+            LongAdder count = myUnknownTokenRequestsByClient.remove(client);
+            if (count != null) {
+                byClient.put(client, count.sum());
+            }
+        }
+        myBucketsByClient.removeExpired();
+        myUnknownTokens.removeExpired();
+
+        if (requests > 0 || rejected > 0) {
+            Loggers.SERVER.warn(requests + " request(s) with unknown invitation tokens received from " + byClient.size() + " client(s)" +
+                    (rejected > 0 ? ", " + rejected + " request(s) rejected by the rate limit" : "") + ", most active clients: " +
+                    byClient.entrySet().stream()
+                            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                            .limit(5)
+                            .map(entry -> entry.getKey() + " (" + entry.getValue() + ")")
+                            .collect(joining(", ")));
+        }
+    }
+
+    /**
+     * Returns the last address of the configured proxy header, it is the one added by the proxy itself,
+     * the addresses before it come from the client and can't be trusted.
+     */
+    @NotNull
+    static String getClient(@NotNull HttpServletRequest request) {
+        String header = TeamCityProperties.getProperty("teamcity.invitations.clientAddressHeader", "").trim();
+        String forwarded = !header.isEmpty() ? request.getHeader(header) : null;
+        if (forwarded != null) {
+            String[] addresses = forwarded.split(",");
+            for (int i = addresses.length - 1; i >= 0; i--) {
+                String address = addresses[i].trim();
+                if (!address.isEmpty()) {
+                    return address;
+                }
+            }
+        }
+        String remoteAddr = request.getRemoteAddr();
+        return remoteAddr != null ? remoteAddr : "unknown";
+    }
+
+    private static int getBurst() {
+        return TeamCityProperties.getInteger("teamcity.invitations.unknownTokens.burst", 20);
+    }
+
+    private static int getRequestsPerMinute() {
+        return TeamCityProperties.getInteger("teamcity.invitations.unknownTokens.perMinute", 10);
+    }
+
+    private static int getMaxEntries() {
+        return TeamCityProperties.getInteger("teamcity.invitations.unknownTokens.maxEntries", 10_000);
+    }
+
+    private static final class UnknownToken {
+        private final long tokensVersion;
+
+        private UnknownToken(long tokensVersion) {
+            this.tokensVersion = tokensVersion;
+        }
+    }
+
+    /**
+     * Unknown token requests a client can still make, refilled continuously at the configured rate up to the burst size.
+     */
+    private static final class TokenBucket {
+        private double myTokens;
+        private long myUpdatedAt;
+
+        private TokenBucket(int burst, long now) {
+            myTokens = burst;
+            myUpdatedAt = now;
+        }
+
+        synchronized boolean tryConsume(long now, int burst, int perMinute) {
+            double tokens = refilled(now, burst, perMinute);
+            myUpdatedAt = now;
+            if (tokens < 1) {
+                myTokens = tokens;
+                return false;
+            }
+            myTokens = tokens - 1;
+            return true;
+        }
+
+        private double refilled(long now, int burst, int perMinute) {
+            return Math.min(burst, myTokens + (now - myUpdatedAt) * perMinute / (double) TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+}
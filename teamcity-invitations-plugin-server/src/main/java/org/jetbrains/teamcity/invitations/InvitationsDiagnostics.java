@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+public class InvitationsDiagnostics implements InvitationsDiagnosticsMXBean {
+    static final String OBJECT_NAME = "org.jetbrains.teamcity.invitations:type=Invitations";
+
+    @NotNull
+    private final InvitationsMetrics metrics;
+    @NotNull
+    private final CreateNewProjectInvitationType createNewProjectInvitationType;
+
+    public InvitationsDiagnostics(@NotNull InvitationsMetrics metrics,
+                                  @NotNull CreateNewProjectInvitationType createNewProjectInvitationType) {
+        this.metrics = metrics;
+        this.createNewProjectInvitationType = createNewProjectInvitationType;
+    }
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to register invitations MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to unregister invitations MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public long getInvitationLookupHits() {
+        return metrics.getLookupHits();
+    }
+
+    @Override
+    public long getInvitationLookupMisses() {
+        return metrics.getLookupMisses();
+    }
+
+    @Override
+    public long getIndexBuilds() {
+        return metrics.getIndexBuilds();
+    }
+
+    @Override
+    public long getLastIndexBuildMillis() {
+        return metrics.getLastIndexBuildMillis();
+    }
+
+    @Override
+    public int getInvitationsInProgress() {
+        return createNewProjectInvitationType.getInProgressInvitationsCount();
+    }
+
+    @Override
+    public Map<String, Long> getPersistsByProject() {
+        return metrics.getPersistsByProject();
+    }
+
+    @Override
+    public long[] getLatencyBucketBoundsMillis() {
+        return InvitationsMetrics.Latency.BUCKET_BOUNDS_MS.clone();
+    }
+
+    @Override
+    public long getLandingRequests() {
+        return metrics.getLandingLatency().getCount();
+    }
+
+    @Override
+    public long getLandingTotalMillis() {
+        return metrics.getLandingLatency().getTotalMillis();
+    }
+
+    @Override
+    public long getLandingMaxMillis() {
+        return metrics.getLandingLatency().getMaxMillis();
+    }
+
+    @Override
+    public long[] getLandingLatencyBuckets() {
+        return metrics.getLandingLatency().getBucketCounts();
+    }
+
+    @Override
+    public long getProceedRequests() {
+        return metrics.getProceedLatency().getCount();
+    }
+
+    @Override
+    public long getProceedTotalMillis() {
+        return metrics.getProceedLatency().getTotalMillis();
+    }
+
+    @Override
+    public long getProceedMaxMillis() {
+        return metrics.getProceedLatency().getMaxMillis();
+    }
+
+    @Override
+    public long[] getProceedLatencyBuckets() {
+        return metrics.getProceedLatency().getBucketCounts();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link InvitationsMetrics}, registered as {@value InvitationsDiagnostics#OBJECT_NAME}.
+ */
+public interface InvitationsDiagnosticsMXBean {
+
+    long getInvitationLookupHits();
+
+    long getInvitationLookupMisses();
+
+    long getIndexBuilds();
+
+    long getLastIndexBuildMillis();
+
+    int getInvitationsInProgress();
+
+    Map<String, Long> getPersistsByProject();
+
+    long[] getLatencyBucketBoundsMillis();
+
+    long getLandingRequests();
+
+    long getLandingTotalMillis();
+
+    long getLandingMaxMillis();
+
+    long[] getLandingLatencyBuckets();
+
+    long getProceedRequests();
+
+    long getProceedTotalMillis();
+
+    long getProceedMaxMillis();
+
+    long[] getProceedLatencyBuckets();
+}
@@ -25,6 +25,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.toList;
 
@@ -52,6 +53,18 @@ public class InvitationsFacadeApi {
         return invitationsStorage.addInvitation(created);
     }
 
+    /**
+     * Creates an invitation for every spec. Each affected project is persisted once for the whole call.
+     */
+    @NotNull
+    public List<Invitation> createJoinProjectInvitations(@NotNull SUser inviter, @NotNull List<JoinProjectInvitationSpec> specs) {
+        List<Invitation> created = specs.stream()
+                .map(spec -> joinProjectInvitationType.createNewInvitation(inviter, spec.name, StringUtil.generateUniqueHash(), spec.project,
+                        spec.roleId, spec.groupKey, spec.multiuser, spec.welcomeText))
+                .collect(toList());
+        return invitationsStorage.addInvitations(created);
+    }
+
     @NotNull
     public List<Invitation> getJoinProjectInvitations(@NotNull SProject project) {
         return invitationsStorage.getInvitations(project).stream()
@@ -59,9 +72,12 @@ public class InvitationsFacadeApi {
                 .collect(toList());
     }
 
+    /**
+     * Finds the invitation by its token, including a single-use invitation which is being accepted right now.
+     */
     @Nullable
     public Invitation findInvitation(@NotNull String token) {
-        return invitationsStorage.getInvitation(token);
+        return invitationsStorage.findInvitation(token);
     }
 
     /**
@@ -77,7 +93,42 @@ public class InvitationsFacadeApi {
         return invitationsLandingController.getInvitationsPath() + "?token=" + invitation.getToken();
     }
 
+    /**
+     * Runs the action persisting each project where it changes invitations only once, when the action completes.
+     * Use it to create or modify many invitations in a row.
+     */
+    public <T> T inBatch(@NotNull Supplier<T> action) {
+        return invitationsStorage.inBatch(action);
+    }
+
     public void registerLandingPageProvider(@NotNull Function<Invitation, String> provider) {
         invitationLandingProvider.registerCustomProvider(provider);
     }
+
+    public static final class JoinProjectInvitationSpec {
+        @NotNull
+        private final String name;
+        @NotNull
+        private final SProject project;
+        @Nullable
+        private final String roleId;
+        @Nullable
+        private final String groupKey;
+        @NotNull
+        private final String welcomeText;
+        private final boolean multiuser;
+
+        public JoinProjectInvitationSpec(@NotNull String name, @NotNull SProject project,
+                                         @Nullable String roleId,
+                                         @Nullable String groupKey,
+                                         @NotNull String welcomeText,
+                                         boolean multiuser) {
+            this.name = name;
+            this.project = project;
+            this.roleId = roleId;
+            this.groupKey = groupKey;
+            this.welcomeText = welcomeText;
+            this.multiuser = multiuser;
+        }
+    }
 }
@@ -20,22 +20,41 @@ import jetbrains.buildServer.RootUrlHolder;
 import jetbrains.buildServer.controllers.AuthorizationInterceptor;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.web.impl.TeamCityInternalKeys;
 import jetbrains.buildServer.web.invitations.InvitationsRegistry;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
-import jetbrains.buildServer.web.util.WebUtil;
+import jetbrains.buildServer.web.util.SessionUser;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 public class InvitationsLandingController extends BaseController {
     public static final String INVITATIONS_PATH = "/invitations.html";
 
     private static final String TOKEN_URL_PARAM = "token";
+    static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int INDEX_NOT_READY_RETRY_AFTER_SECONDS = 5;
+
+    /**
+     * Makes the landing ETags change on server restart, e.g. after the plugin is updated together with its pages.
+     */
+    private static final String ETAG_SALT = Long.toHexString(System.currentTimeMillis());
 
     @NotNull
     private final InvitationsStorage invitations;
@@ -46,43 +65,222 @@ public class InvitationsLandingController extends BaseController {
     @NotNull
     private final RootUrlHolder rootUrlHolder;
 
+    @NotNull
+    private final InvitationsMetrics metrics;
+
+    @NotNull
+    private final InvitationTokenGuard tokenGuard;
+
+    /**
+     * Resolved landings of the visitors who are not logged in by invitation token, see {@link #getGuestLanding}.
+     * Entries of removed, replaced and changed invitations are dropped by the storage listener.
+     */
+    private final BoundedCache<String, GuestLanding> myGuestLandings = new BoundedCache<>(() -> Long.MAX_VALUE,
+            () -> TeamCityProperties.getInteger("teamcity.invitations.guestLandingCache.maxEntries", 10_000));
 
     public InvitationsLandingController(@NotNull WebControllerManager webControllerManager,
                                         @NotNull InvitationsStorage invitations,
                                         @NotNull AuthorizationInterceptor authorizationInterceptor,
                                         @NotNull TeamCityCoreFacade core, @NotNull RootUrlHolder rootUrlHolder,
-                                        @NotNull InvitationsRegistry invitationRegistry) {
+                                        @NotNull InvitationsRegistry invitationRegistry,
+                                        @NotNull InvitationsMetrics metrics,
+                                        @NotNull InvitationTokenGuard tokenGuard) {
         this.invitations = invitations;
         this.core = core;
         this.rootUrlHolder = rootUrlHolder;
+        this.metrics = metrics;
+        this.tokenGuard = tokenGuard;
         webControllerManager.registerController(INVITATIONS_PATH, this);
         authorizationInterceptor.addPathNotRequiringAuth(INVITATIONS_PATH);
-        invitationRegistry.registerInvitationsProvider(request -> {
-            String token = request.getParameter(TOKEN_URL_PARAM);
-            Invitation invitation = core.runAsSystem(() -> invitations.getInvitation(token));
-            return invitation != null;
-        });
+        invitationRegistry.registerInvitationsProvider(this::hasInvitation);
+        invitations.addInvitationDroppedListener(myGuestLandings::remove);
+    }
+
+    /**
+     * Tells TeamCity whether the request carries an invitation. It is asked about many requests,
+     * so the malformed tokens are rejected right away and the known ones are checked in the token index.
+     */
+    boolean hasInvitation(@NotNull HttpServletRequest request) {
+        String token = request.getParameter(TOKEN_URL_PARAM);
+        return InvitationsStorage.isWellFormedToken(token) && invitations.hasInvitation(token);
     }
 
     @Nullable
     @Override
     protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return handleInvitationRequest(request, response);
+        } catch (InvitationsIndexNotReadyException e) {
+            rejectIndexNotReady(response);
+            return null;
+        } finally {
+            metrics.getLandingLatency().recordSince(start);
+        }
+    }
+
+    @Nullable
+    private ModelAndView handleInvitationRequest(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
         String token = request.getParameter(TOKEN_URL_PARAM);
-        Invitation invitation = core.runAsSystem(() -> invitations.getInvitation(token));
+        Invitation invitation = token != null ? tokenGuard.findInvitation(token) : null;
+        if (invitation == null && token != null && invitations.isClaimed(token)) {
+            return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has already been used"));
+        }
         if (invitation == null) {
-            Loggers.SERVER.warn("Request with unknown invitation token received: " + WebUtil.getRequestDump(request));
+            if (!tokenGuard.unknownTokenRequested(request)) {
+                rejectTooManyRequests(response, tokenGuard);
+                return null;
+            }
             return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation not found"));
         }
+        if (invitation.isExpired(System.currentTimeMillis())) {
+            Loggers.SERVER.warn("User tries to accept the invitation '" + token + "' that has expired");
+            return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has expired"));
+        }
+        if (invitation.getMaxUses() > 0 && invitation.getUsedCount() >= invitation.getMaxUses()) {
+            Loggers.SERVER.warn("User tries to accept the invitation '" + token + "' that has reached its usage limit");
+            return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has already been used"));
+        }
         if (invitation.getValidationError() != null) {
             Loggers.SERVER.warn("User tries to accept the invitation '" + token + "' that is invalid: " + invitation.getValidationError());
         }
+        //set before the conditional response below, a 304 must still send the visitor to the invitation after login
         request.getSession().setAttribute(TeamCityInternalKeys.FIRST_LOGIN_REDIRECT_URL,
                 InvitationsProceedController.PATH + "?token=" + token);
+
+        SUser user = SessionUser.getUser(request);
+        if ("GET".equals(request.getMethod()) && user == null) {
+            //the landing of a visitor who is not logged in depends only on the invitation, its model is resolved once and the browser
+            //can revalidate the page it already has, logged in users including the guest one see a different page which is always resolved
+            GuestLanding landing = getGuestLanding(invitation, request, response);
+            response.setHeader("ETag", landing.etag);
+            response.setDateHeader("Last-Modified", landing.lastModified);
+            response.setHeader("Cache-Control", "private, no-cache");
+            if (isNotModified(request, landing)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+            return new ModelAndView(landing.viewName, landing.model);
+        }
         return invitation.processInvitationRequest(request, response);
     }
 
+    /**
+     * Returns the landing resolved for the same invitation instance and the same inputs of its ETag, resolving it again when any of them changed.
+     * The rendered page itself is not kept, the TeamCity page layout writes data of the visitor session into it.
+     */
+    @NotNull
+    private GuestLanding getGuestLanding(@NotNull Invitation invitation, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
+        String landingPage = invitation.getType().getLandingPage(invitation);
+        String validationError = invitation.getValidationError();
+        String projectName = invitation.getProject().getFullName();
+        String queryString = request.getQueryString();
+        GuestLanding cached = myGuestLandings.get(invitation.getToken());
+        if (cached != null && cached.invitation == invitation && cached.usedCount == invitation.getUsedCount() &&
+                cached.landingPage.equals(landingPage) && Objects.equals(cached.validationError, validationError) &&
+                cached.projectName.equals(projectName) && Objects.equals(cached.queryString, queryString)) {
+            return cached;
+        }
+
+        ModelAndView modelAndView = invitation.processInvitationRequest(request, response);
+        GuestLanding landing = new GuestLanding(invitation, invitation.getUsedCount(), landingPage, validationError, projectName, queryString,
+                getLandingETag(invitation, request), System.currentTimeMillis() / 1000 * 1000,
+                modelAndView.getViewName(), Collections.unmodifiableMap(new HashMap<>(modelAndView.getModel())));
+        myGuestLandings.put(invitation.getToken(), landing);
+        return landing;
+    }
+
+    private static boolean isNotModified(@NotNull HttpServletRequest request, @NotNull GuestLanding landing) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return etagMatches(ifNoneMatch, landing.etag);
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && ifModifiedSince >= landing.lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static void rejectTooManyRequests(@NotNull HttpServletResponse response, @NotNull InvitationTokenGuard tokenGuard) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(tokenGuard.getRetryAfterSeconds()));
+        response.sendError(SC_TOO_MANY_REQUESTS);
+    }
+
+    /**
+     * Asks to retry the request shortly, the invitations index is still being built after the server startup.
+     */
+    static void rejectIndexNotReady(@NotNull HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(INDEX_NOT_READY_RETRY_AFTER_SECONDS));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    @NotNull
+    private static String getLandingETag(@NotNull Invitation invitation, @NotNull HttpServletRequest request) {
+        String content = ETAG_SALT + "|" + new TreeMap<>(invitation.asMap()) + "|" + invitation.getType().getLandingPage(invitation) + "|" +
+                invitation.getValidationError() + "|" + invitation.getProject().getFullName() + "|" + request.getQueryString();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean etagMatches(@Nullable String ifNoneMatch, @NotNull String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.startsWith("W/")) {
+                trimmed = trimmed.substring(2);
+            }
+            if (trimmed.equals(etag) || trimmed.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @NotNull
     String getInvitationsPath() {
         return rootUrlHolder.getRootUrl() + InvitationsLandingController.INVITATIONS_PATH;
     }
+
+    private static final class GuestLanding {
+        @NotNull
+        private final Invitation invitation;
+        private final int usedCount;
+        @NotNull
+        private final String landingPage;
+        @Nullable
+        private final String validationError;
+        @NotNull
+        private final String projectName;
+        @Nullable
+        private final String queryString;
+        @NotNull
+        private final String etag;
+        private final long lastModified;
+        private final String viewName;
+        @NotNull
+        private final Map<String, Object> model;
+
+        private GuestLanding(@NotNull Invitation invitation, int usedCount, @NotNull String landingPage, @Nullable String validationError,
+                             @NotNull String projectName, @Nullable String queryString, @NotNull String etag, long lastModified,
+                             String viewName, @NotNull Map<String, Object> model) {
+            this.invitation = invitation;
+            this.usedCount = usedCount;
+            this.landingPage = landingPage;
+            this.validationError = validationError;
+            this.projectName = projectName;
+            this.queryString = queryString;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.viewName = viewName;
+            this.model = model;
+        }
+    }
 }
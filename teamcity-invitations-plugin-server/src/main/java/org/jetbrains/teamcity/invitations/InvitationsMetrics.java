@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters of the invitations plugin, exposed via JMX by {@link InvitationsDiagnostics}.
+ */
+public class InvitationsMetrics {
+
+    private final LongAdder myLookupHits = new LongAdder();
+    private final LongAdder myLookupMisses = new LongAdder();
+    private final LongAdder myIndexBuilds = new LongAdder();
+    private final AtomicLong myLastIndexBuildMillis = new AtomicLong(-1);
+    private final Map<String, LongAdder> myPersistsByProject = new ConcurrentHashMap<>();
+    private final Latency myLandingLatency = new Latency();
+    private final Latency myProceedLatency = new Latency();
+
+    void invitationLookup(boolean found) {
+        (found ? myLookupHits : myLookupMisses).increment();
+    }
+
+    void indexBuilt(long millis) {
+        myIndexBuilds.increment();
+        myLastIndexBuildMillis.set(millis);
+    }
+
+    void persisted(@NotNull String projectId) {
+        myPersistsByProject.computeIfAbsent(projectId, id -> new LongAdder()).increment();
+    }
+
+    /**
+     * Drops the counters of the removed project, so that they don't pile up on servers where projects are created and removed often.
+     */
+    void projectRemoved(@NotNull String projectId) {
+        myPersistsByProject.remove(projectId);
+    }
+
+    public long getLookupHits() {
+        return myLookupHits.sum();
+    }
+
+    public long getLookupMisses() {
+        return myLookupMisses.sum();
+    }
+
+    public long getIndexBuilds() {
+        return myIndexBuilds.sum();
+    }
+
+    public long getLastIndexBuildMillis() {
+        return myLastIndexBuildMillis.get();
+    }
+
+    @NotNull
+    public Map<String, Long> getPersistsByProject() {
+        Map<String, Long> result = new TreeMap<>();
+        myPersistsByProject.forEach((projectId, count) -> result.put(projectId, count.sum()));
+        return result;
+    }
+
+    @NotNull
+    public Latency getLandingLatency() {
+        return myLandingLatency;
+    }
+
+    @NotNull
+    public Latency getProceedLatency() {
+        return myProceedLatency;
+    }
+
+    /**
+     * Request latency histogram with fixed bucket bounds, the last bucket counts requests slower than all the bounds.
+     */
+    public static final class Latency {
+        public static final long[] BUCKET_BOUNDS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+        private final LongAdder[] myBuckets = new LongAdder[BUCKET_BOUNDS_MS.length + 1];
+        private final LongAdder myTotalMillis = new LongAdder();
+        private final AtomicLong myMaxMillis = new AtomicLong();
+
+        Latency() {
+            for (int i = 0; i < myBuckets.length; i++) {
+                myBuckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && millis > BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            myBuckets[bucket].increment();
+            myTotalMillis.add(millis);
+            myMaxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1_000_000);
+        }
+
+        public long getCount() {
+            long result = 0;
+            for (LongAdder bucket : myBuckets) {
+                result += bucket.sum();
+            }
+            return result;
+        }
+
+        public long getTotalMillis() {
+            return myTotalMillis.sum();
+        }
+
+        public long getMaxMillis() {
+            return myMaxMillis.get();
+        }
+
+        @NotNull
+        public long[] getBucketCounts() {
+            long[] result = new long[myBuckets.length];
+            for (int i = 0; i < myBuckets.length; i++) {
+                result[i] = myBuckets[i].sum();
+            }
+            return result;
+        }
+    }
+}
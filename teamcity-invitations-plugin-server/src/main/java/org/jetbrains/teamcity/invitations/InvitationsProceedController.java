@@ -24,7 +24,6 @@ import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.web.functions.user.UserFunctions;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
 import jetbrains.buildServer.web.util.SessionUser;
-import jetbrains.buildServer.web.util.WebUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
@@ -32,6 +31,7 @@ import org.springframework.web.servlet.view.RedirectView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
 
 public class InvitationsProceedController extends BaseController {
     static final String PATH = "/invitationsProceed.html";
@@ -42,11 +42,21 @@ public class InvitationsProceedController extends BaseController {
     @NotNull
     private final TeamCityCoreFacade core;
 
+    @NotNull
+    private final InvitationsMetrics metrics;
+
+    @NotNull
+    private final InvitationTokenGuard tokenGuard;
+
     public InvitationsProceedController(@NotNull WebControllerManager webControllerManager,
                                         @NotNull InvitationsStorage invitations,
-                                        @NotNull TeamCityCoreFacade core) {
+                                        @NotNull TeamCityCoreFacade core,
+                                        @NotNull InvitationsMetrics metrics,
+                                        @NotNull InvitationTokenGuard tokenGuard) {
         this.invitations = invitations;
         this.core = core;
+        this.metrics = metrics;
+        this.tokenGuard = tokenGuard;
         webControllerManager.registerController(PATH, this);
     }
 
@@ -54,6 +64,19 @@ public class InvitationsProceedController extends BaseController {
     @Nullable
     @Override
     protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return proceed(request, response);
+        } catch (InvitationsIndexNotReadyException e) {
+            InvitationsLandingController.rejectIndexNotReady(response);
+            return null;
+        } finally {
+            metrics.getProceedLatency().recordSince(start);
+        }
+    }
+
+    @Nullable
+    private ModelAndView proceed(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
         SUser user = SessionUser.getUser(request);
 
         Object tokenObj = request.getParameter("token");
@@ -65,24 +88,48 @@ public class InvitationsProceedController extends BaseController {
                 return null;
             }
 
-            Invitation invitation = core.runAsSystem(() -> invitations.getInvitation(token));
+            Invitation invitation = tokenGuard.findInvitation(token);
+            if (invitation == null && invitations.isClaimed(token)) {
+                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but it is already used by another user");
+                return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has already been used"));
+            }
             if (invitation == null) {
-                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation doesn't exist anymore");
+                if (!tokenGuard.unknownTokenRequested(request)) {
+                    InvitationsLandingController.rejectTooManyRequests(response, tokenGuard);
+                    return null;
+                }
                 return new ModelAndView(new RedirectView("/"));
             }
             if (!invitation.isEnabled()) {
                 Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is disabled");
                 return new ModelAndView(new RedirectView("/"));
             }
+            if (invitation.isExpired(System.currentTimeMillis())) {
+                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation has expired");
+                return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has expired"));
+            }
             if (invitation.getValidationError() != null) {
                 Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is invalid: " + invitation.getValidationError());
                 return new ModelAndView(new RedirectView("/"));
             }
-            ModelAndView result = invitation.invitationAccepted(user, request, response);
+            if (!invitations.claim(invitation)) {
+                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but it is already used by another user or has reached its usage limit");
+                return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Invitation has already been used"));
+            }
+            ModelAndView result;
+            try {
+                result = invitation.invitationAccepted(user, request, response);
+            } catch (RuntimeException e) {
+                invitations.releaseClaim(invitation);
+                throw e;
+            }
             Loggers.ACTIVITIES.info("User " + user.describe(false) + " accepted the invitation " + invitation.describe(true) + ".");
             return result;
         } else {
-            Loggers.SERVER.warn("User accepted the invitation with unknown token: " + WebUtil.getRequestDump(request));
+            if (!tokenGuard.unknownTokenRequested(request)) {
+                InvitationsLandingController.rejectTooManyRequests(response, tokenGuard);
+                return null;
+            }
             return new ModelAndView(new RedirectView("/"));
         }
     }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class InvitationsServerListener extends BuildServerAdapter {
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final CreateNewProjectInvitationType createNewProjectInvitationType;
+    @NotNull
+    private final InvitationTokenGuard tokenGuard;
+    @NotNull
+    private final ExecutorServices executorServices;
+    @Nullable
+    private volatile ScheduledFuture<?> sweeper;
+    @Nullable
+    private volatile ScheduledFuture<?> usedCountsFlusher;
+
+    public InvitationsServerListener(@NotNull EventDispatcher<BuildServerListener> events,
+                                     @NotNull InvitationsStorage invitations,
+                                     @NotNull CreateNewProjectInvitationType createNewProjectInvitationType,
+                                     @NotNull InvitationTokenGuard tokenGuard,
+                                     @NotNull ExecutorServices executorServices) {
+        this.invitations = invitations;
+        this.createNewProjectInvitationType = createNewProjectInvitationType;
+        this.tokenGuard = tokenGuard;
+        this.executorServices = executorServices;
+        events.addListener(this);
+    }
+
+    @Override
+    public void serverStartup() {
+        executorServices.getLowPriorityExecutorService().submit(invitations::warmUp);
+        long sweepInterval = TeamCityProperties.getLong("teamcity.invitations.sweepIntervalMs", TimeUnit.MINUTES.toMillis(10));
+        sweeper = executorServices.getNormalExecutorService().scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        long flushInterval = TeamCityProperties.getLong("teamcity.invitations.usedCountsFlushIntervalMs", TimeUnit.SECONDS.toMillis(30));
+        usedCountsFlusher = executorServices.getNormalExecutorService().scheduleWithFixedDelay(this::flushUsedCounts, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void serverShutdown() {
+        ScheduledFuture<?> sweeper = this.sweeper;
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+        ScheduledFuture<?> usedCountsFlusher = this.usedCountsFlusher;
+        if (usedCountsFlusher != null) {
+            usedCountsFlusher.cancel(false);
+        }
+        flushUsedCounts();
+    }
+
+    private void sweep() {
+        try {
+            createNewProjectInvitationType.evictExpiredInvitationsInProgress();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to evict expired invitations in progress", e);
+        }
+        try {
+            invitations.removeExpiredInvitations();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to remove expired invitations", e);
+        }
+        try {
+            tokenGuard.logSummary();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to report unknown invitation token requests", e);
+        }
+    }
+
+    private void flushUsedCounts() {
+        try {
+            invitations.flushUsedCounts();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to save used counts of invitations", e);
+        }
+    }
+}
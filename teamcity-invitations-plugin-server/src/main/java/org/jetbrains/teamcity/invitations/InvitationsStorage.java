@@ -21,51 +21,161 @@ import jetbrains.buildServer.serverSide.ProjectsModelListener;
 import jetbrains.buildServer.serverSide.ProjectsModelListenerAdapter;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.jetbrains.teamcity.invitations.AbstractInvitation.TOKEN_PARAM_NAME;
+import static org.jetbrains.teamcity.invitations.AbstractInvitation.USED_COUNT_PARAM_NAME;
 
 @ThreadSafe
 public class InvitationsStorage {
 
     private static final String PROJECT_FEATURE_TYPE = "Invitation";
     private static final String INVITATION_TYPE = "invitationType";
+    private static final int MAX_TOKEN_LENGTH = 128;
+    private static final String WARM_UP_WAIT_TIMEOUT_PROPERTY = "teamcity.invitations.warmUp.waitTimeoutMs";
 
     private final TeamCityCoreFacade teamCityCore;
     private final Map<String, InvitationType> invitationTypes;
 
-    @GuardedBy("this")
-    private Map<String, Invitation> myInvitationByTokenCache;
+    /**
+     * Token index pointing to the invitation and its project feature, null until it is built by the warm-up or the first lookup.
+     * Lookups read it without locking, all modifications are done under the storage monitor.
+     */
+    private volatile Map<String, IndexedInvitation> myInvitationByTokenCache;
+
+    /**
+     * The single in-flight build of the token index shared by the warm-up and the lookups, null until the build starts
+     * and after a failed build so that the next lookup starts it again. Guarded by the storage monitor.
+     */
+    private FutureTask<Map<String, IndexedInvitation>> myIndexBuild;
+
+    /**
+     * Index changes made by the project events while the index is being built, applied in order to the built index
+     * before it is published. Null when no build is in progress, guarded by the storage monitor.
+     */
+    private List<Consumer<Map<String, IndexedInvitation>>> myPendingIndexChanges;
+
+    /**
+     * Parsed invitations of a project in the order of its features, dropped on any change of the project invitations.
+     */
+    private final Map<String, List<Invitation>> myInvitationsByProject = new ConcurrentHashMap<>();
+
+    /**
+     * Projects changed within the current {@link #inBatch} call with descriptions of their changes, null outside of a batch.
+     */
+    private final ThreadLocal<Map<SProject, List<String>>> myPersistBatch = new ThreadLocal<>();
+
+    /**
+     * Tokens of single-use invitations being accepted right now, such invitations are not returned by {@link #getInvitation}.
+     */
+    private final Set<String> myClaimedTokens = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Tokens of the invitations limited by the number of uses whose used count has changed since it was persisted,
+     * see {@link #flushUsedCounts()}. The counts themselves are kept by the indexed invitations.
+     */
+    private final Set<String> myUnsavedUsedCounts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Serializes updates and removals of the invitation features, so that a used count can't be overwritten by a stale one
+     * and an invitation removed concurrently with its update doesn't get back to the index. Taken before the storage monitor.
+     */
+    private final Object myUpdateLock = new Object();
+
+    /**
+     * Incremented whenever a token may become resolvable, see {@link #getTokensVersion()}.
+     */
+    private final AtomicLong myTokensVersion = new AtomicLong();
+
+    private volatile long myIndexBuildMillis = -1;
+
+    /**
+     * Listeners called with the token of an invitation whose indexed instance is removed, replaced or saved again, see {@link #addInvitationDroppedListener}.
+     */
+    private final Set<Consumer<String>> myInvitationDroppedListeners = new CopyOnWriteArraySet<>();
+
+    @NotNull
+    private final InvitationsMetrics metrics;
 
     public InvitationsStorage(@NotNull TeamCityCoreFacade teamCityCore,
-                              @NotNull EventDispatcher<ProjectsModelListener> events) {
+                              @NotNull EventDispatcher<ProjectsModelListener> events,
+                              @NotNull InvitationsMetrics metrics) {
         this.teamCityCore = teamCityCore;
+        this.metrics = metrics;
         this.invitationTypes = new ConcurrentHashMap<>();
         events.addListener(new ProjectsModelListenerAdapter() {
             @Override
             public void projectFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
-                resetCache();
+                if (isInvitationFeature(projectFeature)) {
+                    invitationFeatureAdded(project, projectFeature);
+                }
             }
 
             @Override
             public void projectFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
-                resetCache();
+                if (isInvitationFeature(projectFeature)) {
+                    invitationFeatureRemoved(project, projectFeature);
+                }
             }
 
             @Override
             public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
-                resetCache();
+                if (isInvitationFeature(before) && !(isInvitationFeature(after) && sameToken(before, after))) {
+                    invitationFeatureRemoved(project, before);
+                }
+                if (isInvitationFeature(after)) {
+                    invitationFeatureAdded(project, after);
+                }
+            }
+
+            @Override
+            public void projectRemoved(@NotNull String projectId) {
+                projectInvitationsRemoved(projectId);
+                metrics.projectRemoved(projectId);
+            }
+
+            @Override
+            public void projectArchived(@NotNull String projectId) {
+                projectInvitationsRemoved(projectId);
+            }
+
+            @Override
+            public void projectDearchived(@NotNull String projectId) {
+                projectInvitationsRestored(projectId);
+            }
+
+            @Override
+            public void projectRestored(@NotNull String projectId) {
+                projectInvitationsRestored(projectId);
             }
         });
     }
@@ -75,71 +185,690 @@ public class InvitationsStorage {
     }
 
     public Invitation addInvitation(@NotNull Invitation invitation) {
-        Map<String, String> params = invitation.asMap();
-        params.put(INVITATION_TYPE, invitation.getType().getId());
-        invitation.getProject().addFeature(PROJECT_FEATURE_TYPE, params);
-        teamCityCore.persist(invitation.getProject(), "Invitation added");
+        SProjectFeatureDescriptor feature = invitation.getProject().addFeature(PROJECT_FEATURE_TYPE, toFeatureParams(invitation));
+        persist(invitation.getProject(), "Invitation added");
         Loggers.SERVER.info("Invitation " + invitation.describe(false) + " is created in the project " + invitation.getProject().describe(false));
-        getInvitation(invitation.getToken());//populate cache
+        indexInvitation(invitation, feature.getId());
+        myInvitationsByProject.remove(invitation.getProject().getProjectId());
         return invitation;
     }
 
+    /**
+     * Adds all the invitations persisting each of their projects once and putting them into the token index in one step.
+     */
+    @NotNull
+    public <T extends Invitation> List<T> addInvitations(@NotNull List<T> invitations) {
+        List<IndexedInvitation> added = new ArrayList<>(invitations.size());
+        inBatch(() -> {
+            for (T invitation : invitations) {
+                SProjectFeatureDescriptor feature = invitation.getProject().addFeature(PROJECT_FEATURE_TYPE, toFeatureParams(invitation));
+                persist(invitation.getProject(), "Invitation added");
+                added.add(new IndexedInvitation(invitation, feature.getId()));
+            }
+            return null;
+        });
+        indexInvitations(added);
+
+        Set<String> projectIds = added.stream().map(indexed -> indexed.invitation.getProject().getProjectId()).collect(toSet());
+        projectIds.forEach(myInvitationsByProject::remove);
+        Loggers.SERVER.info(added.size() + " invitations are created in " + projectIds.size() + " project(s)");
+        return invitations;
+    }
+
+    /**
+     * Returns the project invitations, the indexed instances are returned for the indexed ones,
+     * so that their used counts include the uses which are not persisted yet.
+     */
     @NotNull
     public List<Invitation> getInvitations(@NotNull SProject project) {
-        return project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream().map(feature -> fromProjectFeature(project, feature)).collect(toList());
+        return myInvitationsByProject.computeIfAbsent(project.getProjectId(), projectId ->
+                Collections.unmodifiableList(project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
+                        .map(feature -> {
+                            Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+                            IndexedInvitation indexed = index != null ? index.get(feature.getParameters().get(TOKEN_PARAM_NAME)) : null;
+                            return indexed != null && indexed.featureId.equals(feature.getId()) ? indexed.invitation : fromProjectFeature(project, feature);
+                        })
+                        .filter(Objects::nonNull)
+                        .collect(toList())));
     }
 
     public Invitation removeInvitation(@NotNull SProject project, @NotNull String token) {
-        Optional<SProjectFeatureDescriptor> featureDescriptor = project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
-                .filter(feature -> feature.getParameters().get(TOKEN_PARAM_NAME).equals(token))
-                .findFirst();
-
-        if (featureDescriptor.isPresent()) {
-            project.removeFeature(featureDescriptor.get().getId());
-            teamCityCore.persist(project, "Invitation removed");
-            return fromProjectFeature(project, featureDescriptor.get());
-        } else {
+        List<Invitation> removed = removeInvitations(project, Collections.singletonList(token));
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    /**
+     * Removes the project invitations with the given tokens persisting the project once.
+     * Returns the removed invitations, tokens not found in the project are skipped.
+     */
+    @NotNull
+    public List<Invitation> removeInvitations(@NotNull SProject project, @NotNull Collection<String> tokens) {
+        List<Invitation> removed = new ArrayList<>();
+        synchronized (myUpdateLock) {
+            for (String token : tokens) {
+                IndexedInvitation indexed = findIndexed(project, token);
+                if (indexed != null) {
+                    project.removeFeature(indexed.featureId);
+                    removed.add(indexed.invitation);
+                }
+            }
+            unindexInvitations(removed);
+        }
+        if (!removed.isEmpty()) {
+            persist(project, removed.size() == 1 ? "Invitation removed" : removed.size() + " invitations removed");
+            myInvitationsByProject.remove(project.getProjectId());
+            removed.forEach(invitation -> {
+                myClaimedTokens.remove(invitation.getToken());
+                myUnsavedUsedCounts.remove(invitation.getToken());
+            });
+        }
+        return removed;
+    }
+
+    /**
+     * Reserves a single-use invitation for the user accepting it, so that concurrent requests with the same token
+     * can't accept it once again. For a reusable invitation limited by the number of uses one use is counted,
+     * the count is persisted lazily by {@link #flushUsedCounts()} or right away when the limit is reached.
+     *
+     * @return false if the invitation is already being accepted by somebody else or has been used the maximum number of times
+     */
+    public boolean claim(@NotNull Invitation invitation) {
+        if (!invitation.isReusable()) {
+            return myClaimedTokens.add(invitation.getToken());
+        }
+        if (invitation.getMaxUses() > 0 && invitation instanceof AbstractInvitation) {
+            if (!((AbstractInvitation) invitation).tryUse()) {
+                return false;
+            }
+            if (invitation.getUsedCount() >= invitation.getMaxUses()) {
+                myUnsavedUsedCounts.remove(invitation.getToken());
+                teamCityCore.runAsSystem(() -> {
+                    saveUsedCounts(invitation.getProject(), Collections.singletonList(invitation.getToken()),
+                            "Invitation '" + invitation.getName() + "' reached its usage limit");
+                    return null;
+                });
+            } else {
+                myUnsavedUsedCounts.add(invitation.getToken());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the single-use invitation with the token is being accepted by somebody right now.
+     */
+    public boolean isClaimed(@NotNull String token) {
+        return !myClaimedTokens.isEmpty() && myClaimedTokens.contains(token);
+    }
+
+    /**
+     * Makes the claimed invitation available again when its acceptance failed or was abandoned.
+     */
+    public void releaseClaim(@NotNull Invitation invitation) {
+        if (!invitation.isReusable()) {
+            myClaimedTokens.remove(invitation.getToken());
+            myTokensVersion.incrementAndGet();
+        } else if (invitation.getMaxUses() > 0 && invitation instanceof AbstractInvitation) {
+            ((AbstractInvitation) invitation).cancelUse();
+            myUnsavedUsedCounts.add(invitation.getToken());
+        }
+    }
+
+    /**
+     * Persists the used counts changed since the last flush, each project is persisted once.
+     */
+    public void flushUsedCounts() {
+        Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+        if (myUnsavedUsedCounts.isEmpty() || index == null) {
+            return;
+        }
+        Map<SProject, List<String>> byProject = new LinkedHashMap<>();
+        for (String token : new ArrayList<>(myUnsavedUsedCounts)) {
+            IndexedInvitation indexed = index.get(token);
+            if (myUnsavedUsedCounts.remove(token) && indexed != null) {
+                byProject.computeIfAbsent(indexed.invitation.getProject(), project -> new ArrayList<>()).add(token);
+            }
+        }
+        teamCityCore.runAsSystem(() -> inBatch(() -> {
+            byProject.forEach((project, tokens) -> saveUsedCounts(project, tokens, "Invitation usage counts updated"));
             return null;
+        }));
+    }
+
+    /**
+     * Writes the current used counts of the indexed invitations into their project features. Only the used count parameter
+     * is changed, so edits of the invitations made since they were used are kept.
+     */
+    private void saveUsedCounts(@NotNull SProject project, @NotNull Collection<String> tokens, @NotNull String description) {
+        boolean saved = false;
+        synchronized (myUpdateLock) {
+            Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+            if (index == null) {
+                return;
+            }
+            for (String token : tokens) {
+                IndexedInvitation indexed = index.get(token);
+                SProjectFeatureDescriptor feature = indexed != null ? findFeature(project, indexed.featureId) : null;
+                if (feature == null) {
+                    continue;
+                }
+                Map<String, String> params = new HashMap<>(feature.getParameters());
+                params.put(USED_COUNT_PARAM_NAME, String.valueOf(indexed.invitation.getUsedCount()));
+                saved |= project.updateFeature(feature.getId(), PROJECT_FEATURE_TYPE, params);
+            }
+        }
+        if (saved) {
+            persist(project, description);
+            myInvitationsByProject.remove(project.getProjectId());
+        }
+    }
+
+    @Nullable
+    private static SProjectFeatureDescriptor findFeature(@NotNull SProject project, @NotNull String featureId) {
+        for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
+            if (feature.getId().equals(featureId)) {
+                return feature;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Removes the expired invitations persisting each of their projects once.
+     * Does nothing until the token index is built, the expired invitations are rejected on lookup anyway.
+     *
+     * @return the number of removed invitations
+     */
+    public int removeExpiredInvitations() {
+        Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+        if (index == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Map<SProject, List<String>> expiredByProject = new LinkedHashMap<>();
+        for (IndexedInvitation indexed : index.values()) {
+            if (indexed.invitation.isExpired(now)) {
+                expiredByProject.computeIfAbsent(indexed.invitation.getProject(), project -> new ArrayList<>()).add(indexed.invitation.getToken());
+            }
+        }
+        if (expiredByProject.isEmpty()) {
+            return 0;
+        }
+        int removed = teamCityCore.runAsSystem(() -> inBatch(() -> expiredByProject.entrySet().stream()
+                .mapToInt(entry -> removeInvitations(entry.getKey(), entry.getValue()).size())
+                .sum()));
+        Loggers.SERVER.info(removed + " expired invitations are removed from " + expiredByProject.size() + " project(s)");
+        return removed;
+    }
+
+    /**
+     * Returns the number of invitations whose used counts are not persisted yet.
+     */
+    public int getUnsavedUsedCountsCount() {
+        return myUnsavedUsedCounts.size();
     }
 
     public void updateInvitation(@NotNull Invitation invitation, @NotNull String description) {
-        Optional<SProjectFeatureDescriptor> featureDescriptor = invitation.getProject().getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
-                .filter(feature -> feature.getParameters().get(TOKEN_PARAM_NAME).equals(invitation.getToken()))
-                .findFirst();
+        updateInvitations(invitation.getProject(), Collections.singletonList(invitation), description);
+    }
 
-        if (featureDescriptor.isPresent()) {
-            Map<String, String> params = invitation.asMap();
-            params.put(INVITATION_TYPE, invitation.getType().getId());
-            invitation.getProject().updateFeature(featureDescriptor.get().getId(), PROJECT_FEATURE_TYPE, params);
-            teamCityCore.persist(invitation.getProject(), description);
+    /**
+     * Saves the changed project invitations persisting the project once with the given description.
+     * Invitations removed concurrently are skipped, the update doesn't bring them back to the index.
+     */
+    public void updateInvitations(@NotNull SProject project, @NotNull Collection<? extends Invitation> invitations, @NotNull String description) {
+        List<IndexedInvitation> updated = new ArrayList<>();
+        synchronized (myUpdateLock) {
+            for (Invitation invitation : invitations) {
+                IndexedInvitation indexed = findIndexed(project, invitation.getToken());
+                if (indexed != null) {
+                    shareUsedCount(indexed.invitation, invitation);
+                    if (project.updateFeature(indexed.featureId, PROJECT_FEATURE_TYPE, toFeatureParams(invitation))) {
+                        updated.add(new IndexedInvitation(invitation, indexed.featureId));
+                    }
+                }
+            }
+            reindexInvitations(updated);
+        }
+        if (!updated.isEmpty()) {
+            persist(project, description);
+            myInvitationsByProject.remove(project.getProjectId());
         }
     }
 
+    /**
+     * Runs the action persisting each project changed by it only once, when the action completes.
+     * Nested calls join the outer batch.
+     */
+    public <T> T inBatch(@NotNull Supplier<T> action) {
+        if (myPersistBatch.get() != null) {
+            return action.get();
+        }
+
+        Map<SProject, List<String>> batch = new LinkedHashMap<>();
+        myPersistBatch.set(batch);
+        try {
+            return action.get();
+        } finally {
+            myPersistBatch.remove();
+            batch.forEach((project, descriptions) -> doPersist(project, describeChanges(descriptions)));
+        }
+    }
+
+    /**
+     * Finds the invitation by its token. Lookups in the built index need no system context,
+     * the projects are read as system only once, when the index is built.
+     * A lookup made before the index is built waits for the shared build for a limited time, see {@link #awaitIndex()}.
+     *
+     * @throws InvitationsIndexNotReadyException if the index is still being built after the wait
+     */
     @Nullable
     public Invitation getInvitation(@NotNull String token) {
+        Map<String, IndexedInvitation> index = awaitIndex();
+        IndexedInvitation indexed = index.get(token);
+        if (indexed != null && !myClaimedTokens.isEmpty() && myClaimedTokens.contains(token)) {
+            indexed = null;
+        }
+        metrics.invitationLookup(indexed != null);
+        return indexed != null ? indexed.invitation : null;
+    }
+
+    /**
+     * Finds the invitation by its token, unlike {@link #getInvitation} returns the invitation even while it is being accepted.
+     *
+     * @throws InvitationsIndexNotReadyException if the index is still being built after the wait
+     */
+    @Nullable
+    public Invitation findInvitation(@NotNull String token) {
+        Map<String, IndexedInvitation> index = awaitIndex();
+        IndexedInvitation indexed = index.get(token);
+        return indexed != null ? indexed.invitation : null;
+    }
+
+    /**
+     * Finds the invitation with the token among the own invitations of the project,
+     * unlike {@link #getInvitation} returns the invitation even while it is being accepted.
+     */
+    @Nullable
+    public Invitation findInvitation(@NotNull SProject project, @NotNull String token) {
+        IndexedInvitation indexed = findIndexed(project, token);
+        return indexed != null ? indexed.invitation : null;
+    }
+
+    /**
+     * Checks whether the invitation with the token exists and can still be accepted, invitations which have expired
+     * or reached their usage limit are reported as missing. Once the token index is built the check is answered from it
+     * without locking, otherwise the invitation is looked up the same way as by {@link #getInvitation}.
+     * While the index is not ready the invitation is reported as missing, the landing page answers such requests with "try again".
+     */
+    public boolean hasInvitation(@NotNull String token) {
+        Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+        if (index != null) {
+            IndexedInvitation indexed = index.get(token);
+            boolean found = indexed != null && !isClaimed(token);
+            metrics.invitationLookup(found);
+            return found && isAcceptable(indexed.invitation);
+        }
+        try {
+            Invitation invitation = getInvitation(token);
+            return invitation != null && isAcceptable(invitation);
+        } catch (InvitationsIndexNotReadyException e) {
+            return false;
+        }
+    }
+
+    private static boolean isAcceptable(@NotNull Invitation invitation) {
+        return !(invitation.getMaxUses() > 0 && invitation.getUsedCount() >= invitation.getMaxUses()) &&
+                !invitation.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns false for the values which can't be invitation tokens, so they can be rejected without a lookup.
+     */
+    public static boolean isWellFormedToken(@Nullable String token) {
+        if (token == null || token.isEmpty() || token.length() > MAX_TOKEN_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the token index in the calling thread or, when a lookup has already started the build, waits for it to complete.
+     */
+    public void warmUp() {
+        try {
+            getIndexBuild(true).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to build the invitations index, it will be built on the first request", e);
+        }
+    }
+
+    /**
+     * Registers a listener called with the token of an invitation whose indexed instance is removed from the index, replaced
+     * by a new one or saved again after a change, so that data kept for the old state can be dropped. The listener is called under the storage monitor.
+     */
+    public void addInvitationDroppedListener(@NotNull Consumer<String> listener) {
+        myInvitationDroppedListeners.add(listener);
+    }
+
+    /**
+     * Returns a number which changes whenever an invitation is added, changed, restored or released after a failed acceptance,
+     * so a token which was not found before can be remembered as unknown until the number changes.
+     */
+    public long getTokensVersion() {
+        return myTokensVersion.get();
+    }
+
+    /**
+     * Returns time in milliseconds the token index took to build or -1 if it is not built yet.
+     */
+    public long getIndexBuildMillis() {
+        return myIndexBuildMillis;
+    }
+
+    /**
+     * Finds the invitation with its feature id in the index or, when the index is not built yet, in the project features.
+     */
+    @Nullable
+    private IndexedInvitation findIndexed(@NotNull SProject project, @NotNull String token) {
+        Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+        if (index != null) {
+            IndexedInvitation indexed = index.get(token);
+            return indexed != null && indexed.invitation.getProject().getProjectId().equals(project.getProjectId()) ? indexed : null;
+        }
+        for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
+            if (token.equals(feature.getParameters().get(TOKEN_PARAM_NAME))) {
+                Invitation invitation = fromProjectFeature(project, feature);
+                return invitation != null ? new IndexedInvitation(invitation, feature.getId()) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the built index or waits for the shared build at most {@code teamcity.invitations.warmUp.waitTimeoutMs}.
+     * A lookup never builds the index in the request thread: when nothing has started the build yet, for example
+     * before the server startup warm-up is submitted, the build is started in a background thread.
+     */
+    @NotNull
+    private Map<String, IndexedInvitation> awaitIndex() {
+        Map<String, IndexedInvitation> index = myInvitationByTokenCache;
+        if (index != null) {
+            return index;
+        }
+        try {
+            return getIndexBuild(false).get(TeamCityProperties.getLong(WARM_UP_WAIT_TIMEOUT_PROPERTY, 5000), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new InvitationsIndexNotReadyException("Invitations index is not built yet");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvitationsIndexNotReadyException("Interrupted while waiting for the invitations index");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Failed to build the invitations index", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the in-flight or completed index build, starting it when there is none.
+     * A started build runs in the calling thread when {@code inCallingThread} is true, otherwise in a new daemon thread.
+     */
+    @NotNull
+    private FutureTask<Map<String, IndexedInvitation>> getIndexBuild(boolean inCallingThread) {
+        FutureTask<Map<String, IndexedInvitation>> build;
         synchronized (this) {
-            if (myInvitationByTokenCache == null) {
-                myInvitationByTokenCache = new HashMap<>();
-                teamCityCore.runAsSystem(() -> {
-                    for (SProject project : teamCityCore.getActiveProjects()) {
-                        for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
-                            myInvitationByTokenCache.put(feature.getParameters().get(TOKEN_PARAM_NAME), fromProjectFeature(project, feature));
+            build = myIndexBuild;
+            if (build != null) {
+                return build;
+            }
+            build = new FutureTask<>(this::buildIndex);
+            myIndexBuild = build;
+            myPendingIndexChanges = new ArrayList<>();
+        }
+        if (inCallingThread) {
+            build.run();
+        } else {
+            Thread thread = new Thread(build, "Invitations index warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return build;
+    }
+
+    /**
+     * Scans the projects without holding the storage monitor, so that the project events don't wait for the scan.
+     * Changes made by the events in the meantime are collected in {@link #myPendingIndexChanges} and applied before the index is published.
+     */
+    @NotNull
+    private Map<String, IndexedInvitation> buildIndex() {
+        long start = System.currentTimeMillis();
+        Map<String, IndexedInvitation> index = new ConcurrentHashMap<>();
+        int projectsCount;
+        try {
+            projectsCount = teamCityCore.runAsSystem(() -> {
+                List<SProject> projects = teamCityCore.getActiveProjects();
+                for (SProject project : projects) {
+                    for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
+                        Invitation invitation = fromProjectFeature(project, feature);
+                        if (invitation != null) {
+                            index.put(invitation.getToken(), new IndexedInvitation(invitation, feature.getId()));
                         }
                     }
-                    return null;
-                });
+                }
+                return projects.size();
+            });
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                myIndexBuild = null;
+                myPendingIndexChanges = null;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            for (Consumer<Map<String, IndexedInvitation>> change : myPendingIndexChanges) {
+                change.accept(index);
+            }
+            myPendingIndexChanges = null;
+            myInvitationByTokenCache = index;
+        }
+        myTokensVersion.incrementAndGet();
+        myIndexBuildMillis = System.currentTimeMillis() - start;
+        metrics.indexBuilt(myIndexBuildMillis);
+        Loggers.SERVER.info("Invitations index is built in " + myIndexBuildMillis + " ms: " + index.size() + " invitations in " + projectsCount + " projects");
+        return index;
+    }
+
+    /**
+     * Applies the change to the built index or, while the index is being built, queues it for the built one.
+     * Before the build starts changes are dropped, the scan will pick the current state of the project features.
+     */
+    private synchronized void changeIndex(@NotNull Consumer<Map<String, IndexedInvitation>> change) {
+        if (myInvitationByTokenCache != null) {
+            change.accept(myInvitationByTokenCache);
+        } else if (myPendingIndexChanges != null) {
+            myPendingIndexChanges.add(change);
+        }
+    }
+
+    private void indexInvitation(@NotNull Invitation invitation, @NotNull String featureId) {
+        changeIndex(index -> putIndexed(index, new IndexedInvitation(invitation, featureId)));
+        myTokensVersion.incrementAndGet();
+    }
+
+    private void indexInvitations(@NotNull List<IndexedInvitation> invitations) {
+        changeIndex(index -> invitations.forEach(indexed -> putIndexed(index, indexed)));
+        myTokensVersion.incrementAndGet();
+    }
+
+    /**
+     * Replaces the indexed invitations which are still in the index with the same feature, called under {@link #myUpdateLock}.
+     */
+    private void reindexInvitations(@NotNull List<IndexedInvitation> invitations) {
+        if (invitations.isEmpty()) {
+            return;
+        }
+        changeIndex(index -> {
+            for (IndexedInvitation indexed : invitations) {
+                IndexedInvitation current = index.get(indexed.invitation.getToken());
+                if (current != null && current.featureId.equals(indexed.featureId)) {
+                    putIndexed(index, indexed);
+                }
+            }
+        });
+        myTokensVersion.incrementAndGet();
+    }
+
+    /**
+     * Replaces the indexed instance of the invitation keeping its in-memory used count,
+     * so that uses counted but not persisted yet are not lost when the invitation is edited or reloaded.
+     */
+    private void putIndexed(@NotNull Map<String, IndexedInvitation> index, @NotNull IndexedInvitation indexed) {
+        IndexedInvitation previous = index.get(indexed.invitation.getToken());
+        if (previous != null) {
+            shareUsedCount(previous.invitation, indexed.invitation);
+        }
+        index.put(indexed.invitation.getToken(), indexed);
+        if (previous != null) {
+            //an invitation changed in place is saved under the same instance, data kept for it is stale as well
+            invitationDropped(indexed.invitation.getToken());
+        }
+    }
+
+    private void invitationDropped(@NotNull String token) {
+        for (Consumer<String> listener : myInvitationDroppedListeners) {
+            listener.accept(token);
+        }
+    }
+
+    private static void shareUsedCount(@NotNull Invitation current, @NotNull Invitation replacement) {
+        if (current != replacement && current instanceof AbstractInvitation && replacement instanceof AbstractInvitation) {
+            ((AbstractInvitation) replacement).shareUsedCountWith((AbstractInvitation) current);
+        }
+    }
+
+    private void unindexInvitation(@NotNull String token) {
+        changeIndex(index -> unindexInvitation(index, token));
+    }
+
+    private void unindexInvitations(@NotNull List<Invitation> invitations) {
+        changeIndex(index -> invitations.forEach(invitation -> unindexInvitation(index, invitation.getToken())));
+    }
+
+    private void unindexInvitation(@NotNull Map<String, IndexedInvitation> index, @NotNull String token) {
+        if (index.remove(token) != null) {
+            invitationDropped(token);
+        }
+    }
+
+    private void invitationFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor feature) {
+        Invitation invitation = fromProjectFeature(project, feature);
+        if (invitation != null) {
+            indexInvitation(invitation, feature.getId());
+        }
+        myInvitationsByProject.remove(project.getProjectId());
+    }
+
+    private void invitationFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor feature) {
+        String token = feature.getParameters().get(TOKEN_PARAM_NAME);
+        if (token != null) {
+            unindexInvitation(token);
+        }
+        myInvitationsByProject.remove(project.getProjectId());
+    }
+
+    private void projectInvitationsRemoved(@NotNull String projectId) {
+        myInvitationsByProject.remove(projectId);
+        changeIndex(index -> {
+            List<String> removed = index.values().stream()
+                    .filter(indexed -> indexed.invitation.getProject().getProjectId().equals(projectId))
+                    .map(indexed -> indexed.invitation.getToken())
+                    .collect(toList());
+            removed.forEach(token -> unindexInvitation(index, token));
+        });
+    }
+
+    private void projectInvitationsRestored(@NotNull String projectId) {
+        projectInvitationsRemoved(projectId);
+        SProject project = teamCityCore.runAsSystem(() -> teamCityCore.findProjectByIntId(projectId));
+        if (project != null && !project.isArchived()) {
+            for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
+                invitationFeatureAdded(project, feature);
             }
-            return myInvitationByTokenCache.get(token);
         }
     }
 
-    private synchronized void resetCache() {
-        myInvitationByTokenCache = null;
+    private void persist(@NotNull SProject project, @NotNull String description) {
+        Map<SProject, List<String>> batch = myPersistBatch.get();
+        if (batch != null) {
+            batch.computeIfAbsent(project, p -> new ArrayList<>()).add(description);
+        } else {
+            doPersist(project, description);
+        }
+    }
+
+    private void doPersist(@NotNull SProject project, @NotNull String description) {
+        teamCityCore.persist(project, description);
+        metrics.persisted(project.getProjectId());
+    }
+
+    @NotNull
+    private static String describeChanges(@NotNull List<String> descriptions) {
+        if (descriptions.size() == 1) {
+            return descriptions.get(0);
+        }
+        Map<String, Long> counts = descriptions.stream().collect(groupingBy(identity(), LinkedHashMap::new, counting()));
+        return descriptions.size() + " invitation changes: " + counts.entrySet().stream()
+                .map(entry -> entry.getValue() > 1 ? entry.getKey() + " (" + entry.getValue() + " times)" : entry.getKey())
+                .collect(joining(", "));
+    }
+
+    private static boolean sameToken(@NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
+        return Objects.equals(before.getParameters().get(TOKEN_PARAM_NAME), after.getParameters().get(TOKEN_PARAM_NAME));
+    }
+
+    private static boolean isInvitationFeature(@NotNull SProjectFeatureDescriptor feature) {
+        return PROJECT_FEATURE_TYPE.equals(feature.getType());
     }
 
+    @NotNull
+    private static Map<String, String> toFeatureParams(@NotNull Invitation invitation) {
+        Map<String, String> params = invitation.asMap();
+        params.put(INVITATION_TYPE, invitation.getType().getId());
+        return params;
+    }
+
+    @Nullable
     private Invitation fromProjectFeature(SProject project, SProjectFeatureDescriptor feature) {
         InvitationType invitationType = invitationTypes.get(feature.getParameters().get(INVITATION_TYPE));
+        if (invitationType == null) {
+            Loggers.SERVER.warn("Unknown invitation type '" + feature.getParameters().get(INVITATION_TYPE) + "' in the project " + project.describe(false));
+            return null;
+        }
         return invitationType.readFrom(feature.getParameters(), project);
     }
+
+    private static final class IndexedInvitation {
+        @NotNull
+        private final Invitation invitation;
+        @NotNull
+        private final String featureId;
+
+        private IndexedInvitation(@NotNull Invitation invitation, @NotNull String featureId) {
+            this.invitation = invitation;
+            this.featureId = featureId;
+        }
+    }
 }
@@ -21,12 +21,14 @@ import jetbrains.buildServer.groups.SUserGroup;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
 import jetbrains.buildServer.serverSide.auth.Permission;
 import jetbrains.buildServer.serverSide.auth.Role;
 import jetbrains.buildServer.serverSide.auth.RoleScope;
 import jetbrains.buildServer.serverSide.impl.auth.ServerAuthUtil;
 import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.User;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.util.SessionUser;
 import org.jetbrains.annotations.NotNull;
@@ -39,16 +41,25 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjectInvitationType.InvitationImpl> implements InvitationType<JoinProjectInvitationType.InvitationImpl> {
 
     private final TeamCityCoreFacade core;
+    private final long myResolutionTtlMillis;
+    private final long myAssignableTtlMillis;
+    private final BoundedCache<String, AssignableRolesAndGroups> myAssignableByUserAndProject;
 
     public JoinProjectInvitationType(InvitationsStorage invitationsStorage, TeamCityCoreFacade core, InvitationLandingProvider invitationLandingProvider) {
         super(invitationsStorage, core, invitationLandingProvider);
         this.core = core;
+        this.myResolutionTtlMillis = TeamCityProperties.getLong("teamcity.invitations.roleResolution.ttlMs", 10_000);
+        this.myAssignableTtlMillis = TeamCityProperties.getLong("teamcity.invitations.assignableRoles.ttlMs", 5_000);
+        this.myAssignableByUserAndProject = new BoundedCache<>(() -> myAssignableTtlMillis,
+                () -> TeamCityProperties.getInteger("teamcity.invitations.assignableRoles.maxEntries", 10_000));
     }
 
     @NotNull
@@ -82,6 +93,8 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         modelAndView.getModel().put("groups", availableGroups);
 
         modelAndView.getModel().put("multiuser", invitation == null ? "true" : invitation.multi);
+        modelAndView.getModel().put("maxUses", invitation == null || invitation.maxUses == 0 ? "" : invitation.maxUses);
+        modelAndView.getModel().put("expirationDate", invitation == null || invitation.getExpirationDate() == null ? "" : invitation.getExpirationDate().toString());
 
         String preselectedRole = null;
         String preselectedGroup = null;
@@ -123,6 +136,35 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
                 .collect(toList());
     }
 
+    /**
+     * Ids of the roles and keys of the groups the user can assign in the project. Every invitation of the admin tab
+     * is checked against them, so the result is kept per user and project for a short period
+     * (see {@code teamcity.invitations.assignableRoles.ttlMs}). Only the users themselves are cached, wrappers
+     * like {@link AdditionalPermissionsUserWrapper} share the id of the wrapped user but may have more permissions.
+     */
+    @NotNull
+    private AssignableRolesAndGroups getAssignable(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        User associatedUser = user.getAssociatedUser();
+        if (associatedUser != user || myAssignableTtlMillis <= 0) {
+            return computeAssignable(user, project);
+        }
+
+        String key = associatedUser.getId() + ":" + project.getProjectId();
+        AssignableRolesAndGroups assignable = myAssignableByUserAndProject.get(key);
+        if (assignable == null) {
+            assignable = computeAssignable(user, project);
+            myAssignableByUserAndProject.put(key, assignable);
+        }
+        return assignable;
+    }
+
+    @NotNull
+    private AssignableRolesAndGroups computeAssignable(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        return new AssignableRolesAndGroups(
+                getAvailableRoles(user, project).stream().map(Role::getId).collect(toSet()),
+                getAvailableGroups(user, project).stream().map(SUserGroup::getKey).collect(toSet()));
+    }
+
     @Override
     public void validate(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull ActionErrors errors) {
         super.validate(request, project, errors);
@@ -140,7 +182,10 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         String groupKey = !StringUtil.isEmptyOrSpaces(request.getParameter("group")) ? request.getParameter("group") : null;
         String welcomeText = StringUtil.emptyIfNull(request.getParameter("welcomeText"));
         boolean multiuser = Boolean.parseBoolean(request.getParameter("multiuser"));
-        return createNewInvitation(SessionUser.getUser(request), name, token, project, roleId, groupKey, multiuser, welcomeText);
+        InvitationImpl invitation = createNewInvitation(SessionUser.getUser(request), name, token, project, roleId, groupKey, multiuser, welcomeText);
+        invitation.setMaxUses(getMaxUses(request));
+        invitation.setExpiresAt(getExpiresAt(request));
+        return invitation;
     }
 
     @NotNull
@@ -157,7 +202,8 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
 
     @Override
     public boolean isAvailableFor(@NotNull AuthorityHolder authorityHolder, @NotNull SProject project) {
-        return !getAvailableRoles(authorityHolder, project).isEmpty() || !getAvailableGroups(authorityHolder, project).isEmpty();
+        AssignableRolesAndGroups assignable = getAssignable(authorityHolder, project);
+        return !assignable.roleIds.isEmpty() || !assignable.groupKeys.isEmpty();
     }
 
     public final class InvitationImpl extends AbstractInvitation {
@@ -165,6 +211,8 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         private final String roleId;
         @Nullable
         private final String groupKey;
+        @Nullable
+        private volatile ResolvedRoleAndGroup resolved;
 
         InvitationImpl(@NotNull SUser currentUser, @NotNull String name, @NotNull String token, @NotNull SProject project, @Nullable String roleId,
                        @Nullable String groupKey, boolean multi, @NotNull String welcomeText) {
@@ -193,20 +241,24 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
 
         @Override
         public boolean isAvailableFor(@NotNull AuthorityHolder user) {
-            SUserGroup group = getGroup();
-            Role role = getRole();
-            return (role == null || getAvailableRoles(user, project).contains(role))
-                    && (group == null || getAvailableGroups(user, project).contains(group));
+            ResolvedRoleAndGroup resolved = resolve();
+            if (resolved.role == null && resolved.group == null) {
+                return true;
+            }
+            AssignableRolesAndGroups assignable = getAssignable(user, project);
+            return (resolved.role == null || assignable.roleIds.contains(resolved.role.getId()))
+                    && (resolved.group == null || assignable.groupKeys.contains(resolved.group.getKey()));
         }
 
         @Nullable
         @Override
         public String getValidationError() {
+            ResolvedRoleAndGroup resolved = resolve();
             String result = "";
-            if (roleId != null && JoinProjectInvitationType.this.core.findRoleById(roleId) == null) {
+            if (roleId != null && resolved.role == null) {
                 result += "Role '" + roleId + "' doesn't exists anymore";
             }
-            if (groupKey != null && JoinProjectInvitationType.this.core.findGroup(groupKey) == null) {
+            if (groupKey != null && resolved.group == null) {
                 if (!result.isEmpty()) result += "; ";
                 result += "Group '" + groupKey + "' doesn't exists anymore";
             }
@@ -217,8 +269,10 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         public ModelAndView invitationAccepted(@NotNull SUser user, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
             try {
                 SProject created = core.runAsSystem(() -> {
-                    Role role = getRole();
-                    SUserGroup group = getGroup();
+                    //never trust the memoized values here, the role or the group could be removed recently
+                    ResolvedRoleAndGroup resolved = resolveNow();
+                    Role role = resolved.role;
+                    SUserGroup group = resolved.group;
                     if (role == null && group == null) {
                         throw new InvitationException("Failed to proceed invitation with a non-existing role '" + roleId + "' and group '" + groupKey + "'");
                     }
@@ -233,6 +287,7 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
 
                 return new ModelAndView(new RedirectView("/project.html?projectId=" + created.getExternalId(), true));
             } catch (Exception e) {
+                invitationWorkflowAborted(this);
                 Loggers.SERVER.warn("Failed to create project for the invited user " + user.describe(false), e);
                 return new ModelAndView(new RedirectView("/", true));
             }
@@ -240,12 +295,35 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
 
         @Nullable
         public Role getRole() {
-            return roleId != null ? JoinProjectInvitationType.this.core.findRoleById(roleId) : null;
+            return resolve().role;
         }
 
         @Nullable
         public SUserGroup getGroup() {
-            return groupKey != null ? JoinProjectInvitationType.this.core.findGroup(groupKey) : null;
+            return resolve().group;
+        }
+
+        /**
+         * Role and group are looked up on every landing page hit several times, so the lookup result is kept
+         * for a short period (see {@code teamcity.invitations.roleResolution.ttlMs}).
+         */
+        @NotNull
+        private ResolvedRoleAndGroup resolve() {
+            ResolvedRoleAndGroup current = resolved;
+            if (current == null || System.currentTimeMillis() >= current.validUntil) {
+                current = resolveNow();
+            }
+            return current;
+        }
+
+        @NotNull
+        private ResolvedRoleAndGroup resolveNow() {
+            ResolvedRoleAndGroup current = new ResolvedRoleAndGroup(
+                    roleId != null ? JoinProjectInvitationType.this.core.findRoleById(roleId) : null,
+                    groupKey != null ? JoinProjectInvitationType.this.core.findGroup(groupKey) : null,
+                    System.currentTimeMillis() + myResolutionTtlMillis);
+            resolved = current;
+            return current;
         }
 
         @Nullable
@@ -266,9 +344,36 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         @NotNull
         @Override
         public String describe(boolean verbose) {
+            ResolvedRoleAndGroup resolved = resolve();
             return "'join " + project.describe(false) + ", " +
-                    "role: " + (getRole() != null ? getRole().describe(false) : " <empty>") +
-                    ", group: " + (getGroup() != null ? getGroup().describe(false) : " <empty>") + "'";
+                    "role: " + (resolved.role != null ? resolved.role.describe(false) : " <empty>") +
+                    ", group: " + (resolved.group != null ? resolved.group.describe(false) : " <empty>") + "'";
+        }
+    }
+
+    private static final class AssignableRolesAndGroups {
+        @NotNull
+        private final Set<String> roleIds;
+        @NotNull
+        private final Set<String> groupKeys;
+
+        private AssignableRolesAndGroups(@NotNull Set<String> roleIds, @NotNull Set<String> groupKeys) {
+            this.roleIds = roleIds;
+            this.groupKeys = groupKeys;
+        }
+    }
+
+    private static final class ResolvedRoleAndGroup {
+        @Nullable
+        private final Role role;
+        @Nullable
+        private final SUserGroup group;
+        private final long validUntil;
+
+        private ResolvedRoleAndGroup(@Nullable Role role, @Nullable SUserGroup group, long validUntil) {
+            this.role = role;
+            this.group = group;
+            this.validUntil = validUntil;
         }
     }
 }
@@ -30,6 +30,14 @@
     </c:choose>
     <br/>
     Reusable: <c:if test="${invitation.reusable}">Yes</c:if><c:if test="${!invitation.reusable}">No</c:if>
+    <c:if test="${invitation.reusable and invitation.maxUses > 0}">
+        <br/>
+        Used: <c:out value="${invitation.usedCount}"/> of <c:out value="${invitation.maxUses}"/>
+    </c:if>
+    <c:if test="${invitation.expirationDate != null}">
+        <br/>
+        Expires: <c:out value="${invitation.expirationDate}"/>
+    </c:if>
     <br/>
     Welcome text: <bs:trimWithTooltip maxlength="25"><c:out value="${invitation.welcomeText}"/></bs:trimWithTooltip>
 </div>
\ No newline at end of file
@@ -49,5 +49,6 @@
     <%@ include file="fragments/displayNameParam.jspf" %>
     <%@ include file="fragments/welcomeTextParam.jspf" %>
     <%@ include file="fragments/reusableParam.jspf" %>
+    <%@ include file="fragments/expirationParam.jspf" %>
 
 </table>
\ No newline at end of file
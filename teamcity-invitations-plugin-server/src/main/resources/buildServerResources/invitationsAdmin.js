@@ -132,5 +132,61 @@ BS.Invitations = {
                 $('invitationsList').refresh();
             }
         });
+    },
+
+    getSelectedTokens: function () {
+        return $j('#invitationsList .invitationCheckbox:checked').map(function () {
+            return this.value;
+        }).get();
+    },
+
+    selectAll: function (selected) {
+        $j('#invitationsList .invitationCheckbox').prop('checked', selected);
+        this.selectionChanged();
+    },
+
+    selectionChanged: function () {
+        var selected = this.getSelectedTokens().length;
+        var all = $j('#invitationsList .invitationCheckbox').length;
+        $j('#selectAllInvitations').prop('checked', selected > 0 && selected === all);
+        $j('#invitationsList .invitationsBulkAction').prop('disabled', selected === 0);
+        $j('#selectedInvitationsCount').text(selected === 0 ? 'No invitations selected' : selected + ' selected');
+    },
+
+    tokensParameters: function (tokens, projectId) {
+        return tokens.map(function (token) {
+            return 'token=' + encodeURIComponent(token);
+        }).join('&') + '&projectId=' + encodeURIComponent(projectId);
+    },
+
+    deleteSelected: function (projectId) {
+        var tokens = this.getSelectedTokens();
+        if (tokens.length === 0) return;
+        var that = this;
+        BS.confirmDialog.show({
+            text: "Are you sure you want to delete " + tokens.length + " selected invitation(s)?",
+            actionButtonText: "Delete",
+            cancelButtonText: 'Cancel',
+            title: "Delete invitations",
+            action: function () {
+                BS.ajaxRequest(window['base_uri'] + '/admin/invitations.html', {
+                    parameters: 'removeInvitation=true&' + that.tokensParameters(tokens, projectId),
+                    onComplete: function () {
+                        $('invitationsList').refresh();
+                    }
+                });
+            }
+        });
+    },
+
+    setEnabledForSelected: function (projectId, enabled) {
+        var tokens = this.getSelectedTokens();
+        if (tokens.length === 0) return;
+        BS.ajaxRequest(window['base_uri'] + '/admin/invitations.html', {
+            parameters: 'setEnabled=' + enabled + '&' + this.tokensParameters(tokens, projectId),
+            onComplete: function () {
+                $('invitationsList').refresh();
+            }
+        });
     }
 };
\ No newline at end of file
@@ -86,8 +86,20 @@
         <bs:messages key="<%=InvitationAdminController.MESSAGES_KEY%>"/>
         <div class="invitationsList">
             <c:if test="${not empty invitations}">
+                <div class="invitationsBulkActions">
+                    <span id="selectedInvitationsCount">No invitations selected</span>
+                    <input type="button" class="btn btn_mini invitationsBulkAction" value="Enable" disabled="disabled"
+                           onclick="BS.Invitations.setEnabledForSelected('${projectExternalId}', true);"/>
+                    <input type="button" class="btn btn_mini invitationsBulkAction" value="Disable" disabled="disabled"
+                           onclick="BS.Invitations.setEnabledForSelected('${projectExternalId}', false);"/>
+                    <input type="button" class="btn btn_mini invitationsBulkAction" value="Delete..." disabled="disabled"
+                           onclick="BS.Invitations.deleteSelected('${projectExternalId}');"/>
+                </div>
                 <l:tableWithHighlighting className="parametersTable" highlightImmediately="true">
                     <tr>
+                        <th class="invitationSelector">
+                            <input type="checkbox" id="selectAllInvitations" onclick="BS.Invitations.selectAll(this.checked);"/>
+                        </th>
                         <th style="width: 20%">Invitation Type</th>
                         <th style="width: 30%">Description</th>
                         <th colspan="3">Invitation URL</th>
@@ -97,6 +109,10 @@
                         <c:set value="BS.InvitationDialog.openEditDialog('${invitation.token}', '${invitation.type.description}', '${invitation.type.id}', '${projectExternalId}');"
                                var="onclick"/>
                         <tr style="${not invitation.enabled || invitation.validationError != null ? 'color: #888': ''}">
+                            <td class="invitationSelector">
+                                <input type="checkbox" class="invitationCheckbox" value="${invitation.token}"
+                                       onclick="BS.Invitations.selectionChanged();"/>
+                            </td>
                             <td class="highlight" onclick="${onclick}">
                                 <c:if test="${invitation.validationError != null}">
                                     <span class="icon icon16 yellowTriangle" <bs:tooltipAttrs
@@ -72,6 +72,7 @@
     <%@ include file="fragments/displayNameParam.jspf" %>
     <%@ include file="fragments/welcomeTextParam.jspf" %>
     <%@ include file="fragments/reusableParam.jspf" %>
+    <%@ include file="fragments/expirationParam.jspf" %>
 
 </table>
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class BoundedCacheTest extends BaseTestCase {
+
+    public void oldest_entries_are_evicted_when_full() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(() -> Long.MAX_VALUE, () -> 10);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, i);
+        }
+        then(cache.size()).isEqualTo(10);
+
+        cache.put("key10", 10);
+        then(cache.size()).isLessThan(10);
+        then(cache.get("key0")).isNull();
+        then(cache.get("key9")).isEqualTo(9);
+        then(cache.get("key10")).isEqualTo(10);
+    }
+
+    public void entries_expire_after_ttl() throws Exception {
+        AtomicLong ttl = new AtomicLong(Long.MAX_VALUE);
+        BoundedCache<String, Integer> cache = new BoundedCache<>(ttl::get, () -> 10);
+        cache.put("kept", 1);
+
+        ttl.set(1);
+        cache.put("expiring", 2);
+        Thread.sleep(5);
+        then(cache.get("expiring")).isNull();
+        then(cache.get("kept")).isEqualTo(1);
+
+        ttl.set(0);
+        cache.put("kept", 3);
+        then(cache.get("kept")).isNull();
+    }
+}
@@ -36,6 +36,8 @@ import org.jetbrains.annotations.Nullable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.toList;
@@ -46,9 +48,11 @@ import static org.mockito.Mockito.*;
 public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
 
     private final Map<String, Role> roles = new HashMap<>();
-    private final List<SProject> projects = new ArrayList<>();
-    private final List<SUser> users = new ArrayList<>();
+    private final List<SProject> projects = new CopyOnWriteArrayList<>();
+    private final List<SUser> users = new CopyOnWriteArrayList<>();
     private final ConcurrentMap<SUserGroup, List<SUser>> groups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<String>> persisted = new ConcurrentHashMap<>();
+    private final AtomicInteger runAsSystemCalls = new AtomicInteger();
     private SecurityContextImpl securityContext;
     private EventDispatcher<ProjectsModelListener> events;
 
@@ -92,24 +96,50 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         when(project.getParentProjectExternalId()).thenReturn(parentExtId);
         when(project.getParentProjectId()).thenReturn(parentExtId);
 
+        //features are accessed from several threads in the stress tests, events are fired outside of the lock
         MultiMap<String, SProjectFeatureDescriptor> features = new MultiMap<>();
+        AtomicInteger featureIds = new AtomicInteger();
 
         when(project.addFeature(anyString(), anyMap())).thenAnswer(invocation -> {
-            ProjectFeatureDescriptorImpl descriptor = new ProjectFeatureDescriptorImpl(features.size() + "", invocation.getArgument(0), invocation.getArgument(1), project.getProjectId());
-            features.putValue(invocation.getArgument(0), descriptor);
+            ProjectFeatureDescriptorImpl descriptor = new ProjectFeatureDescriptorImpl(featureIds.getAndIncrement() + "", invocation.getArgument(0), invocation.getArgument(1), project.getProjectId());
+            synchronized (features) {
+                features.putValue(invocation.getArgument(0), descriptor);
+            }
             events.getMulticaster().projectFeatureAdded(project, descriptor);
             return descriptor;
         });
 
-        when(project.getOwnFeaturesOfType(anyString())).thenAnswer(invocation -> features.get(invocation.getArgument(0)));
+        when(project.getOwnFeaturesOfType(anyString())).thenAnswer(invocation -> {
+            synchronized (features) {
+                List<SProjectFeatureDescriptor> result = features.get(invocation.getArgument(0));
+                return result == null ? new ArrayList<>() : new ArrayList<>(result);
+            }
+        });
+
+        when(project.updateFeature(anyString(), anyString(), anyMap())).thenAnswer(invocation -> {
+            synchronized (features) {
+                List<SProjectFeatureDescriptor> ofType = features.get(invocation.getArgument(1));
+                for (SProjectFeatureDescriptor feature : ofType == null ? Collections.<SProjectFeatureDescriptor>emptyList() : new ArrayList<>(ofType)) {
+                    if (feature.getId().equals(invocation.getArgument(0))) {
+                        features.removeValue(feature);
+                        features.putValue(invocation.getArgument(1), new ProjectFeatureDescriptorImpl(feature.getId(), invocation.getArgument(1), invocation.getArgument(2), project.getProjectId()));
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
 
         when(project.removeFeature(anyString())).thenAnswer(invocation -> {
-            List<SProjectFeatureDescriptor> toRemove = features.values().stream()
-                    .flatMap(List::stream)
-                    .filter(feature -> feature.getId().equals(invocation.getArgument(0)))
-                    .collect(toList());
+            List<SProjectFeatureDescriptor> toRemove;
+            synchronized (features) {
+                toRemove = features.values().stream()
+                        .flatMap(List::stream)
+                        .filter(feature -> feature.getId().equals(invocation.getArgument(0)))
+                        .collect(toList());
+                toRemove.forEach(features::removeValue);
+            }
             for (SProjectFeatureDescriptor featureDescriptor : toRemove) {
-                features.removeValue(featureDescriptor);
                 events.getMulticaster().projectFeatureRemoved(project, featureDescriptor);
             }
             return null;
@@ -170,10 +200,12 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         if (!securityContext.getAuthorityHolder().isPermissionGrantedForProject(project.getProjectId(), Permission.EDIT_PROJECT)) {
             throw new AccessDeniedException(securityContext.getAuthorityHolder(), "You can't edit project " + project.getProjectId());
         }
+        persisted.computeIfAbsent(project.getProjectId(), id -> Collections.synchronizedList(new ArrayList<>())).add(description);
     }
 
     @Override
     public <T> T runAsSystem(Supplier<T> action) {
+        runAsSystemCalls.incrementAndGet();
         try {
             return securityContext.runAsSystem(action::get);
         } catch (Throwable throwable) {
@@ -228,6 +260,10 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         return role;
     }
 
+    void removeRole(String id) {
+        roles.remove(id);
+    }
+
     @Nullable
     SProject getProject(String extId) {
         return projects.stream().filter(p -> p.getExternalId().equals(extId)).findFirst().orElse(null);
@@ -257,6 +293,15 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         return groups.get(group);
     }
 
+    @NotNull
+    List<String> getPersistedChanges(String projectId) {
+        return persisted.getOrDefault(projectId, Collections.emptyList());
+    }
+
+    int getRunAsSystemCalls() {
+        return runAsSystemCalls.get();
+    }
+
     private <T extends RolesHolder & AuthorityHolder> void setupRolesMocks(T user) {
         Collection<RoleEntry> roles = Collections.synchronizedSet(new HashSet<>());
 
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.RootUrlHolder;
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
+import jetbrains.buildServer.serverSide.ProjectsModelListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.ServerResponsibilityImpl;
+import jetbrains.buildServer.serverSide.ServerSideEventDispatcher;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.Permissions;
+import jetbrains.buildServer.serverSide.auth.Role;
+import jetbrains.buildServer.serverSide.auth.RoleScope;
+import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.web.functions.user.UserFunctions;
+import jetbrains.buildServer.web.invitations.InvitationsRegistry;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.view.RedirectView;
+import org.testng.Reporter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static jetbrains.buildServer.serverSide.auth.RoleScope.projectScope;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs invitation lookups, admin edits, project events and invitation workflows from several threads at once
+ * and checks the storage ends up consistent with the project features. Throughput of every scenario is printed,
+ * so that regressions of the locking strategy are visible.
+ */
+@Test
+public class InvitationsStressTest extends BaseTestCase {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 300;
+
+    private SecurityContextImpl securityContext;
+    private EventDispatcher<ProjectsModelListener> events;
+    private FakeTeamCityCoreFacade core;
+    private InvitationsStorage invitations;
+    private CreateNewProjectInvitationType createNewProjectInvitationType;
+    private JoinProjectInvitationType joinProjectInvitationType;
+    private InvitationsLandingController invitationsController;
+    private InvitationsProceedController invitationsProceedController;
+    private SUser systemAdmin;
+    private SProject testDriveProject;
+    private Role adminRole;
+    private Role developerRole;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        super.setUp();
+        securityContext = new SecurityContextImpl(new ServerResponsibilityImpl());
+        events = ServerSideEventDispatcher.create(securityContext, ProjectsModelListener.class);
+        core = new FakeTeamCityCoreFacade(securityContext, events);
+        Role systemAdminRole = core.addRole("SYSTEM_ADMIN", new Permissions(Permission.values()), false);
+        adminRole = core.addRole("PROJECT_ADMIN", new Permissions(Permission.CREATE_SUB_PROJECT, Permission.CHANGE_USER_ROLES_IN_PROJECT, Permission.EDIT_PROJECT, Permission.ARCHIVE_PROJECT), true);
+        developerRole = core.addRole("PROJECT_DEVELOPER", new Permissions(Permission.RUN_BUILD), true);
+
+        systemAdmin = core.createUser("admin");
+        systemAdmin.addRole(RoleScope.globalScope(), systemAdminRole);
+        securityContext.setAuthorityHolder(systemAdmin);
+        testDriveProject = core.createProject("_Root", "TestDriveProjectId");
+
+        InvitationsMetrics metrics = new InvitationsMetrics();
+        invitations = new InvitationsStorage(core, events, metrics);
+        createNewProjectInvitationType = new CreateNewProjectInvitationType(invitations, core, events, new InvitationLandingProvider(core));
+        joinProjectInvitationType = new JoinProjectInvitationType(invitations, core, new InvitationLandingProvider(core));
+
+        WebControllerManager webControllerManager = Mockito.mock(WebControllerManager.class);
+        //all the requests come from the same address, don't let the unknown token rate limit interfere
+        setInternalProperty("teamcity.invitations.unknownTokens.burst", "1000000");
+        InvitationTokenGuard tokenGuard = new InvitationTokenGuard(invitations, metrics);
+        invitationsController = new InvitationsLandingController(webControllerManager, invitations, Mockito.mock(AuthorizationInterceptor.class),
+                core, Mockito.mock(RootUrlHolder.class), Mockito.mock(InvitationsRegistry.class), metrics, tokenGuard);
+        invitationsProceedController = new InvitationsProceedController(webControllerManager, invitations, core, metrics, tokenGuard);
+
+        UserModel userModel = Mockito.mock(UserModel.class);
+        when(userModel.isGuestUser(any())).thenReturn(false);
+        new UserFunctions(userModel);
+
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void concurrent_changes_and_lookups_keep_index_consistent() throws Exception {
+        List<SProject> projects = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            projects.add(core.createProject("_Root", "Project" + i));
+        }
+        Map<String, String> alive = new ConcurrentHashMap<>();
+        Set<String> removed = ConcurrentHashMap.newKeySet();
+        List<String> created = new CopyOnWriteArrayList<>();
+
+        runConcurrently("create, remove and look up invitations", (thread, iteration) -> {
+            if (thread % 2 == 0) {
+                SProject project = projects.get((thread + iteration) % projects.size());
+                String token = "token-" + thread + "-" + iteration;
+                invitations.addInvitation(createJoinInvitation(project, token));
+                created.add(token);
+                if (iteration % 3 == 0) {
+                    then(invitations.removeInvitation(project, token)).isNotNull();
+                    removed.add(token);
+                } else {
+                    alive.put(token, project.getProjectId());
+                }
+            } else {
+                if (!created.isEmpty()) {
+                    String token = created.get(iteration % created.size());
+                    Invitation found = invitations.getInvitation(token);
+                    if (found != null) {
+                        then(found.getToken()).isEqualTo(token);
+                    }
+                }
+                for (Invitation invitation : invitations.getInvitations(projects.get(iteration % projects.size()))) {
+                    then(invitation.getProject()).isSameAs(projects.get(iteration % projects.size()));
+                }
+            }
+        });
+
+        for (SProject project : projects) {
+            Set<String> expected = new HashSet<>();
+            alive.forEach((token, projectId) -> {
+                if (projectId.equals(project.getProjectId())) expected.add(token);
+            });
+            then(tokens(invitations.getInvitations(project))).isEqualTo(expected);
+            then(tokens(reloadedStorage().getInvitations(project))).isEqualTo(expected);
+        }
+        alive.forEach((token, projectId) -> then(invitations.getInvitation(token).getProject().getProjectId()).isEqualTo(projectId));
+        removed.forEach(token -> then(invitations.getInvitation(token)).isNull());
+    }
+
+    public void concurrent_admin_edits_are_not_lost() throws Exception {
+        List<Invitation> edited = new ArrayList<>();
+        for (int i = 0; i < THREADS * 4; i++) {
+            edited.add(invitations.addInvitation(createJoinInvitation(testDriveProject, "edited-" + i)));
+        }
+        Map<String, Boolean> expected = new ConcurrentHashMap<>();
+
+        runConcurrently("enable and disable invitations of one project", (thread, iteration) -> {
+            //every thread edits its own invitations, so the last written state of each one is known
+            Invitation invitation = edited.get(thread + THREADS * (iteration % 4));
+            boolean enabled = iteration % 2 == 0;
+            invitation.setEnabled(enabled);
+            invitations.updateInvitation(invitation, enabled ? "Invitation enabled" : "Invitation disabled");
+            expected.put(invitation.getToken(), enabled);
+        });
+
+        InvitationsStorage reloaded = reloadedStorage();
+        expected.forEach((token, enabled) -> {
+            then(invitations.getInvitation(token).isEnabled()).as(token).isEqualTo(enabled);
+            then(reloaded.getInvitation(token).isEnabled()).as(token).isEqualTo(enabled);
+        });
+    }
+
+    public void updates_racing_with_removals_do_not_bring_invitations_back() throws Exception {
+        List<Invitation> raced = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            raced.add(invitations.addInvitation(createJoinInvitation(testDriveProject, "raced-" + i)));
+        }
+
+        runConcurrently("update and remove the same invitations", (thread, iteration) -> {
+            Invitation invitation = raced.get(iteration);
+            if (thread == 0) {
+                invitations.removeInvitation(testDriveProject, invitation.getToken());
+            } else {
+                invitations.updateInvitation(invitation, "Invitation updated");
+            }
+        });
+
+        raced.forEach(invitation -> then(invitations.getInvitation(invitation.getToken())).as(invitation.getToken()).isNull());
+        then(invitations.getInvitations(testDriveProject)).isEmpty();
+        then(reloadedStorage().getInvitations(testDriveProject)).isEmpty();
+    }
+
+    public void project_events_do_not_leave_stale_entries() throws Exception {
+        SProject archived = core.createProject("_Root", "ArchivedProject");
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            tokens.add(invitations.addInvitation(createJoinInvitation(archived, "archived-" + i)).getToken());
+        }
+        List<String> tokenList = new ArrayList<>(tokens);
+
+        runConcurrently("archive, dearchive and look up the project invitations", (thread, iteration) -> {
+            if (thread == 0) {
+                if (iteration % 2 == 0) {
+                    events.getMulticaster().projectArchived(archived.getProjectId());
+                } else {
+                    events.getMulticaster().projectDearchived(archived.getProjectId());
+                }
+            } else {
+                Invitation found = invitations.getInvitation(tokenList.get(iteration % tokenList.size()));
+                if (found != null) {
+                    then(found.getProject()).isSameAs(archived);
+                }
+                invitations.getInvitations(archived);
+            }
+        });
+
+        events.getMulticaster().projectDearchived(archived.getProjectId());
+        then(tokens(invitations.getInvitations(archived))).isEqualTo(tokens);
+        tokens.forEach(token -> then(invitations.getInvitation(token)).isNotNull());
+    }
+
+    public void concurrent_landings_and_proceeds() throws Exception {
+        String joinToken = invitations.addInvitation(createJoinInvitation(testDriveProject, "join")).getToken();
+        String createToken = invitations.addInvitation(createNewProjectInvitationType.new InvitationImpl(systemAdmin, "Create project", "create",
+                testDriveProject, "PROJECT_ADMIN", true, "Hello")).getToken();
+
+        int usersCount = THREADS * 20;
+        List<SUser> joiners = new ArrayList<>();
+        List<SUser> creators = new ArrayList<>();
+        for (int i = 0; i < usersCount; i++) {
+            joiners.add(core.createUser("joiner" + i));
+            creators.add(core.createUser("creator" + i));
+        }
+
+        runConcurrently("land on and accept invitations", usersCount / THREADS, (thread, iteration) -> {
+            int userIndex = thread * (usersCount / THREADS) + iteration;
+
+            SUser joiner = joiners.get(userIndex);
+            MockHttpSession joinerSession = new MockHttpSession();
+            then(invitationsController.doHandle(newRequest(joinerSession, "/invitations.html?token=" + joinToken, null), new MockHttpServletResponse()).getModel().get("invitation")).isNotNull();
+            invitationsProceedController.doHandle(newRequest(joinerSession, InvitationsProceedController.PATH + "?token=" + joinToken, joiner), new MockHttpServletResponse());
+
+            SUser creator = creators.get(userIndex);
+            MockHttpSession creatorSession = new MockHttpSession();
+            invitationsController.doHandle(newRequest(creatorSession, "/invitations.html?token=" + createToken, null), new MockHttpServletResponse());
+            MockHttpServletRequest proceed = newRequest(creatorSession, InvitationsProceedController.PATH + "?token=" + createToken, creator);
+            ModelAndView accepted = invitationsProceedController.doHandle(proceed, new MockHttpServletResponse());
+            then(accepted.getView()).isInstanceOf(RedirectView.class);
+            securityContext.setAuthorityHolder(SessionUser.getUser(proceed));
+            core.createProject(testDriveProject.getExternalId(), "Project of " + creator.getUsername());
+        });
+
+        joiners.forEach(user -> then(user.getRolesWithScope(projectScope(testDriveProject.getProjectId()))).contains(developerRole));
+        creators.forEach(user -> then(user.getRolesWithScope(projectScope("Project of " + user.getUsername()))).contains(adminRole));
+        then(createNewProjectInvitationType.getInProgressInvitationsCount()).isZero();
+    }
+
+    public void single_user_invitation_is_accepted_once() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            String token = invitations.addInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "Single use", "single-" + round,
+                    testDriveProject, "PROJECT_DEVELOPER", null, false, "Hello")).getToken();
+            List<SUser> users = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                users.add(core.createUser("round" + round + "user" + i));
+            }
+
+            runConcurrently("accept a single-use invitation", 1, (thread, iteration) ->
+                    invitationsProceedController.doHandle(newRequest(new MockHttpSession(), InvitationsProceedController.PATH + "?token=" + token, users.get(thread)), new MockHttpServletResponse()));
+
+            then(users.stream().filter(user -> user.getRolesWithScope(projectScope(testDriveProject.getProjectId())).contains(developerRole)).count()).isEqualTo(1);
+            then(invitations.getInvitation(token)).isNull();
+        }
+    }
+
+    public void limited_invitation_is_accepted_up_to_the_limit() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            JoinProjectInvitationType.InvitationImpl created = joinProjectInvitationType.createNewInvitation(systemAdmin, "Limited", "limited-" + round,
+                    testDriveProject, "PROJECT_DEVELOPER", null, true, "Hello");
+            created.setMaxUses(3);
+            String token = invitations.addInvitation(created).getToken();
+            List<SUser> users = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                users.add(core.createUser("limited" + round + "user" + i));
+            }
+
+            runConcurrently("accept a limited invitation", 1, (thread, iteration) -> {
+                invitationsProceedController.doHandle(newRequest(new MockHttpSession(), InvitationsProceedController.PATH + "?token=" + token, users.get(thread)), new MockHttpServletResponse());
+                if (thread % 2 == 0) {
+                    invitations.flushUsedCounts();
+                }
+            });
+
+            then(users.stream().filter(user -> user.getRolesWithScope(projectScope(testDriveProject.getProjectId())).contains(developerRole)).count()).isEqualTo(3);
+            then(invitations.getInvitation(token).getUsedCount()).isEqualTo(3);
+            then(reloadedStorage().getInvitation(token).getUsedCount()).isEqualTo(3);
+        }
+    }
+
+    private interface Operation {
+        void run(int thread, int iteration) throws Exception;
+    }
+
+    private void runConcurrently(@NotNull String scenario, @NotNull Operation operation) throws Exception {
+        runConcurrently(scenario, OPERATIONS_PER_THREAD, operation);
+    }
+
+    private void runConcurrently(@NotNull String scenario, int operationsPerThread, @NotNull Operation operation) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            futures.add(executor.submit(() -> {
+                securityContext.setAuthorityHolder(systemAdmin);
+                start.await();
+                for (int iteration = 0; iteration < operationsPerThread; iteration++) {
+                    operation.run(thread, iteration);
+                }
+                return null;
+            }));
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        int operations = THREADS * operationsPerThread;
+        Reporter.log(scenario + ": " + operations + " operations in " + THREADS + " threads took " + millis + " ms, " + operations * 1000L / millis + " ops/s");
+        securityContext.setAuthorityHolder(systemAdmin);
+    }
+
+    @NotNull
+    private MockHttpServletRequest newRequest(@NotNull MockHttpSession session, @NotNull String url, SUser user) {
+        MockHttpServletRequest request = MockMvcRequestBuilders.request(HttpMethod.GET, url).session(session).buildRequest(new MockServletContext());
+        if (user != null) {
+            SessionUser.setUser(request, user);
+            securityContext.setAuthorityHolder(user);
+        }
+        return request;
+    }
+
+    @NotNull
+    private Invitation createJoinInvitation(@NotNull SProject project, @NotNull String token) {
+        return joinProjectInvitationType.createNewInvitation(systemAdmin, "Join " + token, token, project, "PROJECT_DEVELOPER", null, true, "Hello");
+    }
+
+    @NotNull
+    private InvitationsStorage reloadedStorage() {
+        InvitationsStorage reloaded = new InvitationsStorage(core, events, new InvitationsMetrics());
+        new CreateNewProjectInvitationType(reloaded, core, events, new InvitationLandingProvider(core));
+        new JoinProjectInvitationType(reloaded, core, new InvitationLandingProvider(core));
+        return reloaded;
+    }
+
+    @NotNull
+    private static Set<String> tokens(@NotNull Collection<? extends Invitation> invitations) {
+        Set<String> result = new HashSet<>();
+        invitations.forEach(invitation -> result.add(invitation.getToken()));
+        return result;
+    }
+}
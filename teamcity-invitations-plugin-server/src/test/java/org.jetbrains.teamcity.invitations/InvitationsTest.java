@@ -33,9 +33,11 @@ import jetbrains.buildServer.serverSide.auth.*;
 import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.users.impl.UserEx;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.web.functions.user.UserFunctions;
+import jetbrains.buildServer.web.impl.TeamCityInternalKeys;
 import jetbrains.buildServer.web.invitations.InvitationsRegistry;
 import jetbrains.buildServer.web.openapi.*;
 import jetbrains.buildServer.web.util.SessionUser;
@@ -56,8 +58,17 @@ import org.testng.annotations.Test;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.serverSide.auth.RoleScope.projectScope;
@@ -71,6 +82,8 @@ import static org.mockito.Mockito.when;
 public class InvitationsTest extends BaseTestCase {
 
     private InvitationsStorage invitations;
+    private InvitationsMetrics metrics;
+    private InvitationTokenGuard tokenGuard;
     private InvitationsLandingController invitationsController;
     private InvitationsProceedController invitationsProceedController;
     private InvitationAdminController invitationsAdminController;
@@ -108,10 +121,11 @@ public class InvitationsTest extends BaseTestCase {
 
         WebControllerManager webControllerManager = createWebControllerManager();
 
+        tokenGuard = new InvitationTokenGuard(invitations, metrics);
         invitationsController = new InvitationsLandingController(webControllerManager, invitations, Mockito.mock(AuthorizationInterceptor.class),
-                core, Mockito.mock(RootUrlHolder.class), Mockito.mock(InvitationsRegistry.class));
+                core, Mockito.mock(RootUrlHolder.class), Mockito.mock(InvitationsRegistry.class), metrics, tokenGuard);
 
-        invitationsProceedController = new InvitationsProceedController(webControllerManager, invitations, core);
+        invitationsProceedController = new InvitationsProceedController(webControllerManager, invitations, core, metrics, tokenGuard);
 
         final UserModel userModel = Mockito.mock(UserModel.class);
         when(userModel.isGuestUser(any())).thenReturn(false);
@@ -146,7 +160,8 @@ public class InvitationsTest extends BaseTestCase {
     }
 
     private void initInvitationStorage() {
-        invitations = new InvitationsStorage(core, events);
+        metrics = new InvitationsMetrics();
+        invitations = new InvitationsStorage(core, events, metrics);
         createNewProjectInvitationType = new CreateNewProjectInvitationType(invitations, core, events, new InvitationLandingProvider(core));
         joinProjectInvitationType = new JoinProjectInvitationType(invitations, core, new InvitationLandingProvider(core));
     }
@@ -187,6 +202,68 @@ public class InvitationsTest extends BaseTestCase {
 
     }
 
+    public void unrelated_project_creation_does_not_finish_invitation_in_progress() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
+
+        logout();
+        SUser user = core.createUser("oleg");
+        login(user);
+        ModelAndView afterRegistrationMAW = goToAfterRegistrationUrl(token);
+
+        //somebody else creates projects meanwhile
+        securityContext.setAuthorityHolder(systemAdmin);
+        core.createProject("TestDriveProjectId", "Admin Project");
+        core.createProject("_Root", "Another Admin Project");
+        then(systemAdmin.getRolesWithScope(projectScope("Admin Project"))).isEmpty();
+
+        newRequest(HttpMethod.GET, ((RedirectView) afterRegistrationMAW.getView()).getUrl());
+        core.createProject("TestDriveProjectId", "New Project");
+        then(user.getRolesWithScope(projectScope("New Project"))).extracting(Role::getId).contains("PROJECT_ADMIN");
+    }
+
+    public void abandoned_invitation_in_progress_is_evicted() throws Exception {
+        setInternalProperty("teamcity.invitations.createProject.inProgressTtlMs", "0");
+        login(systemAdmin);
+        String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
+
+        logout();
+        SUser user = core.createUser("oleg");
+        login(user);
+        goToAfterRegistrationUrl(token);
+        then(createNewProjectInvitationType.getInProgressInvitationsCount()).isEqualTo(1);
+        then(SessionUser.getUser(request).isPermissionGrantedForProject(testDriveProject.getProjectId(), Permission.CREATE_SUB_PROJECT)).isTrue();
+
+        then(createNewProjectInvitationType.evictExpiredInvitationsInProgress()).isEqualTo(1);
+        then(createNewProjectInvitationType.getInProgressInvitationsCount()).isZero();
+        then(SessionUser.getUser(request).isPermissionGrantedForProject(testDriveProject.getProjectId(), Permission.CREATE_SUB_PROJECT)).isFalse();
+    }
+
+    public void invitation_metrics_are_collected() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        long hits = metrics.getLookupHits();
+        long misses = metrics.getLookupMisses();
+
+        logout();
+        goToInvitationUrl(token);
+        goToInvitationUrl("unknown");
+
+        then(metrics.getLookupHits()).isEqualTo(hits + 1);
+        then(metrics.getLookupMisses()).isEqualTo(misses + 1);
+        then(metrics.getIndexBuilds()).isEqualTo(1);
+        then(metrics.getLandingLatency().getCount()).isEqualTo(2);
+        then(metrics.getPersistsByProject()).containsEntry(testDriveProject.getProjectId(), 1L);
+
+        //counters of removed projects are not kept
+        metrics.projectRemoved(testDriveProject.getProjectId());
+        then(metrics.getPersistsByProject()).doesNotContainKey(testDriveProject.getProjectId());
+
+        InvitationsDiagnostics diagnostics = new InvitationsDiagnostics(metrics, createNewProjectInvitationType);
+        then(diagnostics.getLandingLatencyBuckets()).hasSize(InvitationsMetrics.Latency.BUCKET_BOUNDS_MS.length + 1);
+        then(diagnostics.getInvitationsInProgress()).isZero();
+    }
+
     @Test
     public void invite_user_to_join_the_project_using_direct_role() throws Exception {
         login(systemAdmin);
@@ -276,6 +353,34 @@ public class InvitationsTest extends BaseTestCase {
         then(afterRestartEl2).isEqualTo(beforeRestartEl2);
     }
 
+    public void index_is_warmed_up_on_server_startup() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+
+        initInvitationStorage();
+        then(invitations.getIndexBuildMillis()).isEqualTo(-1);
+
+        logout();
+        invitations.warmUp();
+        then(invitations.getIndexBuildMillis()).isGreaterThanOrEqualTo(0);
+        then(invitations.getInvitation(token)).isNotNull();
+    }
+
+    public void lookup_before_warm_up_waits_for_shared_index_build() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+
+        initInvitationStorage();
+        logout();
+        then(invitations.getInvitation(token)).isNotNull();
+        long buildMillis = invitations.getIndexBuildMillis();
+        then(buildMillis).isGreaterThanOrEqualTo(0);
+
+        invitations.warmUp();
+        then(invitations.getIndexBuildMillis()).isEqualTo(buildMillis);
+        then(invitations.hasInvitation(token)).isTrue();
+    }
+
     public void remove_invitation() throws Exception {
         login(systemAdmin);
         String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
@@ -290,6 +395,251 @@ public class InvitationsTest extends BaseTestCase {
         then(invitationResponse.getModel().get("invitation")).isNull();
     }
 
+    public void invitation_index_is_updated_incrementally() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        String token = invitation.getToken();
+
+        testDriveProject.addFeature("OtherFeature", Collections.singletonMap("param", "value"));
+        then(invitations.getInvitation(token)).isSameAs(invitation);
+
+        Map<String, String> params = invitation.asMap();
+        params.put("invitationType", joinProjectInvitationType.getId());
+        params.put(AbstractInvitation.TOKEN_PARAM_NAME, "externallyAddedToken");
+        testDriveProject.addFeature("Invitation", params);
+        then(invitations.getInvitation("externallyAddedToken")).isNotNull();
+
+        testDriveProject.getOwnFeaturesOfType("Invitation").stream()
+                .filter(feature -> feature.getParameters().get(AbstractInvitation.TOKEN_PARAM_NAME).equals("externallyAddedToken"))
+                .findFirst()
+                .ifPresent(feature -> testDriveProject.removeFeature(feature.getId()));
+        then(invitations.getInvitation("externallyAddedToken")).isNull();
+        then(invitations.getInvitation(token)).isSameAs(invitation);
+    }
+
+    public void project_invitations_are_cached_until_changed() throws Exception {
+        login(systemAdmin);
+        Invitation first = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        List<Invitation> cached = invitations.getInvitations(testDriveProject);
+        then(cached).extracting(Invitation::getToken).containsExactly(first.getToken());
+        then(invitations.getInvitations(testDriveProject)).isSameAs(cached);
+
+        Invitation second = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", false);
+        then(invitations.getInvitations(testDriveProject)).extracting(Invitation::getToken).containsExactly(first.getToken(), second.getToken());
+
+        invitations.removeInvitation(testDriveProject, first.getToken());
+        then(invitations.getInvitations(testDriveProject)).extracting(Invitation::getToken).containsExactly(second.getToken());
+    }
+
+    public void indexed_invitation_is_modified_without_scanning_project_features() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        Mockito.clearInvocations(testDriveProject);
+
+        invitation.setEnabled(false);
+        invitations.updateInvitation(invitation, "Invitation disabled");
+        then(invitations.removeInvitation(testDriveProject, invitation.getToken())).isSameAs(invitation);
+
+        Mockito.verify(testDriveProject, Mockito.never()).getOwnFeaturesOfType(anyString());
+        then(invitations.getInvitation(invitation.getToken())).isNull();
+    }
+
+    public void invitation_changes_made_in_batch_are_persisted_once_per_project() throws Exception {
+        login(systemAdmin);
+        int persistedBefore = core.getPersistedChanges(testDriveProject.getProjectId()).size();
+
+        List<Invitation> created = invitations.inBatch(() -> asList(
+                invitations.addInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "First", "token1", testDriveProject, "PROJECT_DEVELOPER", null, true, "Hello")),
+                invitations.addInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "Second", "token2", testDriveProject, "PROJECT_DEVELOPER", null, true, "Hello"))
+        ));
+        then(core.getPersistedChanges(testDriveProject.getProjectId())).hasSize(persistedBefore + 1);
+        then(core.getPersistedChanges(testDriveProject.getProjectId()).get(persistedBefore)).isEqualTo("2 invitation changes: Invitation added (2 times)");
+
+        invitations.inBatch(() -> {
+            created.forEach(invitation -> invitations.removeInvitation(testDriveProject, invitation.getToken()));
+            return null;
+        });
+        then(core.getPersistedChanges(testDriveProject.getProjectId())).hasSize(persistedBefore + 2);
+        then(invitations.getInvitations(testDriveProject)).isEmpty();
+    }
+
+    public void create_invitations_in_bulk() throws Exception {
+        login(systemAdmin);
+        SProject rootProject = core.getProject("_Root");
+        InvitationsFacadeApi facade = new InvitationsFacadeApi(invitations, joinProjectInvitationType, invitationsController, new InvitationLandingProvider(core));
+        then(invitations.getInvitation("unknown")).isNull();
+
+        List<Invitation> created = facade.createJoinProjectInvitations(systemAdmin, asList(
+                new InvitationsFacadeApi.JoinProjectInvitationSpec("First", testDriveProject, "PROJECT_DEVELOPER", null, "Hello", false),
+                new InvitationsFacadeApi.JoinProjectInvitationSpec("Second", testDriveProject, "PROJECT_DEVELOPER", null, "Hello", false),
+                new InvitationsFacadeApi.JoinProjectInvitationSpec("Third", rootProject, "PROJECT_DEVELOPER", null, "Hello", true)
+        ));
+
+        then(created).extracting(Invitation::getName).containsExactly("First", "Second", "Third");
+        for (Invitation invitation : created) {
+            then(invitations.getInvitation(invitation.getToken())).isSameAs(invitation);
+        }
+        then(facade.getJoinProjectInvitations(testDriveProject)).extracting(Invitation::getName).containsExactly("First", "Second");
+        then(core.getPersistedChanges(testDriveProject.getProjectId())).containsOnlyOnce("2 invitation changes: Invitation added (2 times)");
+        then(core.getPersistedChanges(rootProject.getProjectId())).containsOnlyOnce("Invitation added");
+    }
+
+    public void invitation_lookups_do_not_wait_for_writers() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        CountDownLatch writerStarted = new CountDownLatch(1);
+        CountDownLatch releaseWriter = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(9);
+        try {
+            //index modifications are done under the storage monitor
+            executor.submit(() -> {
+                synchronized (invitations) {
+                    writerStarted.countDown();
+                    releaseWriter.await();
+                }
+                return null;
+            });
+            then(writerStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            List<Future<Invitation>> readers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                readers.add(executor.submit(() -> invitations.getInvitation(invitation.getToken())));
+            }
+            for (Future<Invitation> reader : readers) {
+                then(reader.get(5, TimeUnit.SECONDS)).isSameAs(invitation);
+            }
+        } finally {
+            releaseWriter.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public void bulk_enable_and_remove_invitations() throws Exception {
+        login(systemAdmin);
+        Invitation first = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        Invitation second = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        int persistedBefore = core.getPersistedChanges(testDriveProject.getProjectId()).size();
+
+        newRequest(HttpMethod.POST, "/admin/invitations.html?setEnabled=false&projectId=TestDriveProjectId");
+        request.addParameter("token", first.getToken());
+        request.addParameter("token", second.getToken());
+        invitationsAdminController.handleRequestInternal(request, response);
+        then(invitations.getInvitation(first.getToken()).isEnabled()).isFalse();
+        then(invitations.getInvitation(second.getToken()).isEnabled()).isFalse();
+        then(core.getPersistedChanges(testDriveProject.getProjectId())).hasSize(persistedBefore + 1);
+
+        newRequest(HttpMethod.POST, "/admin/invitations.html?removeInvitation=true&projectId=TestDriveProjectId");
+        request.addParameter("token", first.getToken());
+        request.addParameter("token", second.getToken());
+        invitationsAdminController.handleRequestInternal(request, response);
+        then(invitations.getInvitation(first.getToken())).isNull();
+        then(invitations.getInvitation(second.getToken())).isNull();
+        then(core.getPersistedChanges(testDriveProject.getProjectId())).hasSize(persistedBefore + 2);
+        then(core.getPersistedChanges(testDriveProject.getProjectId()).get(persistedBefore + 1)).isEqualTo("2 invitations removed");
+    }
+
+    public void invitation_being_accepted_can_be_edited() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", false);
+        then(invitations.claim(invitation)).isTrue();
+        then(invitations.getInvitation(invitation.getToken())).isNull();
+
+        newRequest(HttpMethod.GET, "/admin/invitations.html?projectId=TestDriveProjectId&token=" + invitation.getToken());
+        then(invitationsAdminController.handleRequestInternal(request, response).getModel().get("project")).isSameAs(testDriveProject);
+
+        newRequest(HttpMethod.POST, "/admin/invitations.html?saveInvitation=true&projectId=TestDriveProjectId&token=" + invitation.getToken());
+        request.addParameter("name", "Renamed Invitation");
+        request.addParameter("invitationType", createNewProjectInvitationType.getId());
+        request.addParameter("role", "PROJECT_ADMIN");
+        request.addParameter("multiuser", "false");
+        request.addParameter("welcomeText", "Hello");
+        invitationsAdminController.handleRequestInternal(request, response);
+        then(invitations.findInvitation(testDriveProject, invitation.getToken()).getName()).isEqualTo("Renamed Invitation");
+
+        InvitationsFacadeApi facade = new InvitationsFacadeApi(invitations, joinProjectInvitationType, invitationsController, new InvitationLandingProvider(core));
+        then(facade.findInvitation(invitation.getToken())).isNotNull();
+    }
+
+    public void permissions_are_checked_for_invitations_being_accepted() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToCreateProject("PROJECT_ADMIN", "_Root", false);
+        then(invitations.claim(invitation)).isTrue();
+
+        SUser oleg = core.createUser("oleg");
+        oleg.addRole(projectScope(testDriveProject.getProjectId()), adminRole);
+        login(oleg);
+
+        newRequest(HttpMethod.POST, "/admin/invitations.html?setEnabled=false&projectId=_Root&token=" + invitation.getToken());
+        invitationsAdminController.handleRequestInternal(request, response);
+        then(ActionMessages.getMessages(request).getMessage("accessDenied")).isNotNull();
+
+        newRequest(HttpMethod.POST, "/admin/invitations.html?removeInvitation=true&projectId=_Root&token=" + invitation.getToken());
+        invitationsAdminController.handleRequestInternal(request, response);
+        then(ActionMessages.getMessages(request).getMessage("accessDenied")).isNotNull();
+        then(invitations.findInvitation(invitation.getProject(), invitation.getToken())).isNotNull();
+    }
+
+    public void role_and_group_are_resolved_once_per_ttl() throws Exception {
+        login(systemAdmin);
+        JoinProjectInvitationType.InvitationImpl invitation = (JoinProjectInvitationType.InvitationImpl) createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        then(invitation.getRole()).isSameAs(developerRole);
+
+        core.removeRole("PROJECT_DEVELOPER");
+        then(invitation.getRole()).isSameAs(developerRole);
+        then(invitation.getValidationError()).isNull();
+
+        setInternalProperty("teamcity.invitations.roleResolution.ttlMs", "0");
+        initInvitationStorage();
+        Invitation reloaded = invitations.getInvitation(invitation.getToken());
+        then(reloaded.getValidationError()).isEqualTo("Role 'PROJECT_DEVELOPER' doesn't exists anymore");
+    }
+
+    public void assignable_roles_are_cached_per_user_and_project() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        SUser oleg = core.createUser("oleg");
+        when(oleg.getAssociatedUser()).thenReturn(oleg);
+        oleg.addRole(projectScope(testDriveProject.getProjectId()), adminRole);
+        then(invitation.isAvailableFor(oleg)).isTrue();
+
+        SUser ivan = core.createUser("ivan");
+        when(ivan.getAssociatedUser()).thenReturn(ivan);
+        then(invitation.isAvailableFor(ivan)).isFalse();
+        Map<String, List<Permission>> additionalPermissions = new HashMap<>();
+        additionalPermissions.put(testDriveProject.getProjectId(), asList(Permission.CHANGE_USER_ROLES_IN_PROJECT, Permission.RUN_BUILD));
+        then(invitation.isAvailableFor(new AdditionalPermissionsUserWrapper((UserEx) ivan, additionalPermissions).getWrappedUser())).isTrue();
+
+        oleg.getRoles().clear();
+        then(invitation.isAvailableFor(oleg)).isTrue();
+
+        setInternalProperty("teamcity.invitations.assignableRoles.ttlMs", "0");
+        initInvitationStorage();
+        then(invitations.getInvitation(invitation.getToken()).isAvailableFor(oleg)).isFalse();
+    }
+
+    public void additional_permissions_are_granted_until_wrapper_is_disabled() throws Exception {
+        SUser oleg = core.createUser("oleg");
+        Map<String, List<Permission>> additionalPermissions = new HashMap<>();
+        additionalPermissions.put(testDriveProject.getProjectId(), asList(Permission.CREATE_SUB_PROJECT, Permission.VIEW_PROJECT));
+        AdditionalPermissionsUserWrapper wrapper = new AdditionalPermissionsUserWrapper((UserEx) oleg, additionalPermissions);
+
+        UserEx wrapped = wrapper.getWrappedUser();
+        then(wrapper.getWrappedUser()).isSameAs(wrapped);
+        then(wrapped.getUsername()).isEqualTo("oleg");
+        then(wrapped.isPermissionGrantedForProject(testDriveProject.getProjectId(), Permission.CREATE_SUB_PROJECT)).isTrue();
+        then(wrapped.isPermissionGrantedForProject("_Root", Permission.CREATE_SUB_PROJECT)).isFalse();
+        then(wrapped.isPermissionGrantedForAnyProject(Permission.VIEW_PROJECT)).isTrue();
+        then(wrapped.isPermissionGrantedForAnyProject(Permission.EDIT_PROJECT)).isFalse();
+        then(wrapped.getPermissionsGrantedForProject(testDriveProject.getProjectId()).contains(Permission.CREATE_SUB_PROJECT)).isTrue();
+
+        wrapper.disable();
+        then(wrapped.isPermissionGrantedForProject(testDriveProject.getProjectId(), Permission.CREATE_SUB_PROJECT)).isFalse();
+        then(wrapped.isPermissionGrantedForAnyProject(Permission.VIEW_PROJECT)).isFalse();
+    }
+
     public void invitation_removed_during_user_registration() throws Exception {
         login(systemAdmin);
         String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
@@ -349,6 +699,280 @@ public class InvitationsTest extends BaseTestCase {
         then(secondView.getModel().get("invitation")).isNull();
     }
 
+    public void single_user_invitation_is_claimed_by_the_first_user() throws Exception {
+        setInternalProperty("teamcity.invitations.createProject.inProgressTtlMs", "0");
+        login(systemAdmin);
+        String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", false).getToken();
+
+        logout();
+        login(core.createUser("oleg"));
+        then(goToAfterRegistrationUrl(token).getView()).isInstanceOf(RedirectView.class);
+        then(invitations.getInvitation(token)).isNull();
+
+        logout();
+        login(core.createUser("ivan"));
+        ModelAndView claimed = goToAfterRegistrationUrl(token);
+        assertViewName(claimed, "invitationLanding.jsp");
+        then(claimed.getModel().get("title")).isEqualTo("Invitation has already been used");
+
+        //the first user has abandoned the invitation
+        createNewProjectInvitationType.evictExpiredInvitationsInProgress();
+        then(invitations.getInvitation(token)).isNotNull();
+        then(goToAfterRegistrationUrl(token).getView()).isInstanceOf(RedirectView.class);
+    }
+
+    public void used_count_flush_keeps_later_edits() throws Exception {
+        JoinProjectInvitationType.InvitationImpl created = joinProjectInvitationType.createNewInvitation(systemAdmin, "Class", "classToken", testDriveProject,
+                "PROJECT_DEVELOPER", null, true, "Hello");
+        created.setMaxUses(5);
+        String token = invitations.addInvitation(created).getToken();
+
+        login(core.createUser("oleg"));
+        then(goToAfterRegistrationUrl(token).getView()).isInstanceOf(RedirectView.class);
+
+        login(systemAdmin);
+        JoinProjectInvitationType.InvitationImpl edited = joinProjectInvitationType.readFrom(invitations.getInvitation(token).asMap(), testDriveProject);
+        edited.setEnabled(false);
+        invitations.updateInvitation(edited, "Invitation disabled");
+        invitations.flushUsedCounts();
+
+        initInvitationStorage();
+        then(invitations.getInvitation(token).isEnabled()).isFalse();
+        then(invitations.getInvitation(token).getUsedCount()).isEqualTo(1);
+    }
+
+    public void invitation_is_accepted_up_to_the_maximum_number_of_uses() throws Exception {
+        JoinProjectInvitationType.InvitationImpl created = joinProjectInvitationType.createNewInvitation(systemAdmin, "Class", "classToken", testDriveProject,
+                "PROJECT_DEVELOPER", null, true, "Hello");
+        created.setMaxUses(2);
+        String token = invitations.addInvitation(created).getToken();
+        long persists = metrics.getPersistsByProject().get(testDriveProject.getProjectId());
+
+        login(core.createUser("oleg"));
+        then(goToAfterRegistrationUrl(token).getView()).isInstanceOf(RedirectView.class);
+        then(invitations.getInvitation(token).getUsedCount()).isEqualTo(1);
+        then(metrics.getPersistsByProject().get(testDriveProject.getProjectId())).isEqualTo(persists);
+
+        //the admin tab shows the uses which are not saved yet
+        then(invitations.getInvitations(testDriveProject)).filteredOn(invitation -> invitation.getToken().equals(token))
+                .extracting(Invitation::getUsedCount).containsExactly(1);
+
+        //used count is saved lazily
+        invitations.flushUsedCounts();
+        then(metrics.getPersistsByProject().get(testDriveProject.getProjectId())).isEqualTo(persists + 1);
+        initInvitationStorage();
+        then(invitations.getInvitation(token).getUsedCount()).isEqualTo(1);
+
+        login(core.createUser("ivan"));
+        then(goToAfterRegistrationUrl(token).getView()).isInstanceOf(RedirectView.class);
+
+        //reaching the limit is saved right away
+        initInvitationStorage();
+        then(invitations.getInvitation(token).getUsedCount()).isEqualTo(2);
+
+        //the registry doesn't let to sign up with a used up invitation
+        then(invitations.hasInvitation(token)).isFalse();
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        then(invitationsController.hasInvitation(request)).isFalse();
+
+        SUser petr = core.createUser("petr");
+        login(petr);
+        ModelAndView exhausted = goToAfterRegistrationUrl(token);
+        assertViewName(exhausted, "invitationLanding.jsp");
+        then(exhausted.getModel().get("title")).isEqualTo("Invitation has already been used");
+        then(petr.getRolesWithScope(projectScope(testDriveProject.getProjectId()))).isEmpty();
+
+        logout();
+        then(goToInvitationUrl(token).getModel().get("title")).isEqualTo("Invitation has already been used");
+    }
+
+    public void expired_invitations_are_rejected_and_removed() throws Exception {
+        long now = System.currentTimeMillis();
+        List<JoinProjectInvitationType.InvitationImpl> created = new ArrayList<>();
+        for (String token : asList("expired1", "expired2", "valid")) {
+            JoinProjectInvitationType.InvitationImpl invitation = joinProjectInvitationType.createNewInvitation(systemAdmin, "Expiring", token, testDriveProject,
+                    "PROJECT_DEVELOPER", null, true, "Hello");
+            invitation.setExpiresAt(token.startsWith("expired") ? now - 1000 : now + TimeUnit.DAYS.toMillis(1));
+            created.add(invitation);
+        }
+        invitations.addInvitations(created);
+        initInvitationStorage();
+        then(invitations.getInvitation("expired1").isExpired(System.currentTimeMillis())).isTrue();
+        then(invitations.hasInvitation("expired1")).isFalse();
+        then(invitations.hasInvitation("valid")).isTrue();
+        newRequest(HttpMethod.GET, "/invitations.html?token=expired1");
+        then(invitationsController.hasInvitation(request)).isFalse();
+
+        then(goToInvitationUrl("expired1").getModel().get("title")).isEqualTo("Invitation has expired");
+        SUser oleg = core.createUser("oleg");
+        login(oleg);
+        then(goToAfterRegistrationUrl("expired1").getModel().get("title")).isEqualTo("Invitation has expired");
+        then(oleg.getRolesWithScope(projectScope(testDriveProject.getProjectId()))).isEmpty();
+
+        long persists = metrics.getPersistsByProject().getOrDefault(testDriveProject.getProjectId(), 0L);
+        then(invitations.removeExpiredInvitations()).isEqualTo(2);
+        then(metrics.getPersistsByProject().get(testDriveProject.getProjectId())).isEqualTo(persists + 1);
+        then(invitations.getInvitations(testDriveProject)).extracting(Invitation::getToken).containsOnly("valid");
+        then(invitations.removeExpiredInvitations()).isZero();
+    }
+
+    public void custom_landing_is_resolved_once_per_invitation() throws Exception {
+        InvitationLandingProvider landingProvider = new InvitationLandingProvider(core);
+        AtomicInteger calls = new AtomicInteger();
+        landingProvider.registerCustomProvider(invitation -> {
+            calls.incrementAndGet();
+            return "custom.jsp";
+        });
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        then(landingProvider.getLanding(invitation)).isEqualTo("custom.jsp");
+        then(landingProvider.getLanding(invitation)).isEqualTo("custom.jsp");
+        then(calls.get()).isEqualTo(1);
+
+        //changed invitation is read again from its project feature and resolved again
+        Invitation reloaded = joinProjectInvitationType.readFrom(invitation.asMap(), testDriveProject);
+        then(landingProvider.getLanding(reloaded)).isEqualTo("custom.jsp");
+        then(calls.get()).isEqualTo(2);
+
+        //as well as after a new provider is registered
+        landingProvider.registerCustomProvider(i -> null);
+        then(landingProvider.getLanding(reloaded)).isEqualTo("custom.jsp");
+        then(calls.get()).isEqualTo(3);
+
+        //landing of a removed invitation is not kept
+        invitations.addInvitationDroppedListener(landingProvider::invitationDropped);
+        then(landingProvider.getLanding(invitation)).isEqualTo("custom.jsp");
+        then(calls.get()).isEqualTo(4);
+        invitations.removeInvitation(testDriveProject, invitation.getToken());
+        then(landingProvider.getLanding(invitation)).isEqualTo("custom.jsp");
+        then(calls.get()).isEqualTo(5);
+    }
+
+    public void unchanged_anonymous_landing_is_not_rendered_again() throws Exception {
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        String token = invitation.getToken();
+        logout();
+
+        ModelAndView first = goToInvitationUrl(token);
+        then(first).isNotNull();
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        then(etag).isNotNull();
+        then(lastModified).isNotNull();
+        then(response.getHeader("Cache-Control")).isEqualTo("private, no-cache");
+
+        //a first time visitor gets the landing resolved for the previous one
+        session = new MockHttpSession();
+        ModelAndView second = goToInvitationUrl(token);
+        then(second.getViewName()).isEqualTo(first.getViewName());
+        then(second.getModel()).isEqualTo(first.getModel());
+        then(response.getHeader("ETag")).isEqualTo(etag);
+
+        session = new MockHttpSession();
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        request.addHeader("If-Modified-Since", lastModified);
+        then(invitationsController.doHandle(request, response)).isNull();
+        then(response.getStatus()).isEqualTo(304);
+
+        session = new MockHttpSession();
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        request.addHeader("If-None-Match", etag);
+        then(invitationsController.doHandle(request, response)).isNull();
+        then(response.getStatus()).isEqualTo(304);
+        then(session.getAttribute(TeamCityInternalKeys.FIRST_LOGIN_REDIRECT_URL)).isEqualTo(InvitationsProceedController.PATH + "?token=" + token);
+
+        //changed invitation is rendered again
+        invitation.setEnabled(false);
+        invitations.updateInvitation(invitation, "Invitation disabled");
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        request.addHeader("If-None-Match", etag);
+        then(invitationsController.doHandle(request, response)).isNotNull();
+        then(response.getHeader("ETag")).isNotEqualTo(etag);
+
+        //logged in users always get the page rendered
+        login(core.createUser("oleg"));
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        request.addHeader("If-None-Match", etag);
+        then(invitationsController.doHandle(request, response)).isNotNull();
+        then(response.getHeader("ETag")).isNull();
+    }
+
+    public void unknown_tokens_are_remembered_and_rate_limited() throws Exception {
+        setInternalProperty("teamcity.invitations.unknownTokens.burst", "3");
+        setInternalProperty("teamcity.invitations.unknownTokens.perMinute", "1");
+        logout();
+
+        long misses = metrics.getLookupMisses();
+        then(goToInvitationUrl("unknownToken").getModel().get("title")).isEqualTo("Invitation not found");
+        then(goToInvitationUrl("unknownToken").getModel().get("title")).isEqualTo("Invitation not found");
+        //the remembered unknown token is not looked up again but is still counted as a miss
+        then(metrics.getLookupMisses()).isEqualTo(misses + 2);
+
+        //the token is looked up again once an invitation is added
+        invitations.addInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "Late", "unknownToken", testDriveProject,
+                "PROJECT_DEVELOPER", null, true, "Hello"));
+        then(goToInvitationUrl("unknownToken").getModel().get("invitation")).isNotNull();
+
+        then(goToInvitationUrl("anotherUnknownToken").getModel().get("title")).isEqualTo("Invitation not found");
+        then(goToInvitationUrl("oneMoreUnknownToken")).isNull();
+        then(response.getStatus()).isEqualTo(429);
+        then(response.getHeader("Retry-After")).isEqualTo("60");
+
+        //known tokens are still served to the limited client
+        then(goToInvitationUrl("unknownToken").getModel().get("invitation")).isNotNull();
+
+        //as well as the tokens of invitations being accepted by somebody else
+        Invitation single = invitations.addInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "Single", "singleToken", testDriveProject,
+                "PROJECT_DEVELOPER", null, false, "Hello"));
+        then(invitations.claim(single)).isTrue();
+        then(goToInvitationUrl("singleToken").getModel().get("title")).isEqualTo("Invitation has already been used");
+
+        //other clients are not affected
+        newRequest(HttpMethod.GET, "/invitations.html?token=oneMoreUnknownToken");
+        request.setRemoteAddr("10.0.0.2");
+        then(invitationsController.doHandle(request, response).getModel().get("title")).isEqualTo("Invitation not found");
+
+        //clients behind a proxy are told apart by the address added by the proxy
+        setInternalProperty("teamcity.invitations.clientAddressHeader", "X-Forwarded-For");
+        newRequest(HttpMethod.GET, "/invitations.html?token=oneMoreUnknownToken");
+        request.addHeader("X-Forwarded-For", "10.0.0.3, 10.0.0.4");
+        then(invitationsController.doHandle(request, response).getModel().get("title")).isEqualTo("Invitation not found");
+    }
+
+    public void registry_checks_only_well_formed_known_tokens() throws Exception {
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        then(InvitationsStorage.isWellFormedToken(token)).isTrue();
+        long misses = metrics.getLookupMisses();
+
+        newRequest(HttpMethod.GET, "/overview.html");
+        then(invitationsController.hasInvitation(request)).isFalse();
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        then(invitationsController.hasInvitation(request)).isTrue();
+        newRequest(HttpMethod.GET, "/invitations.html?token=unknown");
+        then(invitationsController.hasInvitation(request)).isFalse();
+        newRequest(HttpMethod.GET, "/invitations.html?token=%3Cscript%3E");
+        then(invitationsController.hasInvitation(request)).isFalse();
+        //malformed tokens are rejected without a lookup
+        then(metrics.getLookupMisses()).isEqualTo(misses + 1);
+    }
+
+    public void lookups_of_indexed_invitations_do_not_run_as_system() throws Exception {
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        logout();
+        int runAsSystemCalls = core.getRunAsSystemCalls();
+
+        then(goToInvitationUrl(token).getModel().get("invitation")).isNotNull();
+        then(goToInvitationUrl("unknown").getModel().get("title")).isEqualTo("Invitation not found");
+        newRequest(HttpMethod.GET, "/invitations.html?token=" + token);
+        then(invitationsController.hasInvitation(request)).isTrue();
+        then(core.getRunAsSystemCalls()).isEqualTo(runAsSystemCalls);
+
+        //the projects are scanned as system when the index is built
+        initInvitationStorage();
+        then(invitations.getInvitation(token)).isNotNull();
+        then(core.getRunAsSystemCalls()).isEqualTo(runAsSystemCalls + 1);
+    }
+
     public void user_cant_invite_project_admin_to_inaccessible_project() throws Exception {
         SUser projectAdmin = core.createUser("oleg");
 